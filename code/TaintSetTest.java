@@ -1,8 +1,10 @@
 
+import java.util.Arrays;
 import java.util.Random;
 
 import junit.framework.TestCase;
 import javax.security.TaintSet;
+import javax.security.TaintTable;
 
 import java.io.FileWriter;
 import java.io.IOException;
@@ -21,6 +23,43 @@ public class TaintSetTest extends TestCase {
 	TaintSet t7 = TaintSet.generate(new boolean[]{false, true, false, false});
 	TaintSet t8 = TaintSet.generate(new boolean[]{false, true, false, true, false});
 	
+	// The tuning knobs as they were before the test, put back after it even if it fails, so no test sees another's settings
+	int ropesize, lazydepth, chunksize, offheapsize, coarsegrain, coarsesize, maxIntervals, adaptivefloor, adaptiveceiling;
+	long offheapbudget;
+	double compactfraction;
+	boolean interning, adaptive;
+	
+	protected void setUp() {
+		ropesize = TaintSet.getRopeSize();
+		lazydepth = TaintSet.getLazyDepth();
+		interning = TaintSet.getInterning();
+		chunksize = TaintSet.getChunkSize();
+		offheapsize = TaintSet.getOffHeapSize();
+		offheapbudget = TaintSet.getOffHeapBudget();
+		compactfraction = TaintSet.getCompactFraction();
+		coarsegrain = TaintSet.getCoarseGrain();
+		coarsesize = TaintSet.getCoarseSize();
+		maxIntervals = TaintSet.getMaxIntervals();
+		adaptive = TaintSet.getAdaptive();
+		adaptivefloor = TaintSet.getAdaptiveFloor();
+		adaptiveceiling = TaintSet.getAdaptiveCeiling();
+	}
+	
+	protected void tearDown() {
+		TaintSet.setRopeSize(ropesize);
+		TaintSet.setLazyDepth(lazydepth);
+		TaintSet.setInterning(interning);
+		TaintSet.setChunkSize(chunksize);
+		TaintSet.setOffHeapSize(offheapsize);
+		TaintSet.setOffHeapBudget(offheapbudget);
+		TaintSet.setCompactFraction(compactfraction);
+		TaintSet.setCoarseGrain(coarsegrain);
+		TaintSet.setCoarseSize(coarsesize);
+		TaintSet.setAdaptive(adaptive); // first, so adapting doesn't move the limit again
+		TaintSet.setAdaptiveBounds(adaptivefloor, adaptiveceiling);
+		TaintSet.setMaxIntervals(maxIntervals);
+	}
+	
 	public void testConstruct() {
 		assertEquals("011", t1.toString());
 		assertEquals("0101", t3.toString());
@@ -112,12 +151,1170 @@ public class TaintSetTest extends TestCase {
 	
 	public void testSubstring() {
 		assertEquals("1110000000011111111", TaintSet.generate(t6, 4, 23).toString());
-		assertEquals("11100000000111111110", TaintSet.generate(t6, 4, 24).toString());
+		// normalized, the set ends at its last taint: the untainted char 23 only shows when it is read over the substring's 20 chars
+		assertEquals("1110000000011111111", TaintSet.generate(t6, 4, 24).toString());
+		assertEquals("11100000000111111110", TaintSet.generate(t6, 4, 24).toString(20));
 		TaintSet s1 = TaintSet.generate(t6, 21, 36);
 		s1.printTaintBits();
 		assertEquals("11000000001111", s1.toString());
 	}
 	
+	// bitmaps spanning several 64-bit words, shifted by amounts that do and do not align to a word
+	public void testWordBoundaries() {
+		TaintSet t9 = new TaintSet(0, 64, new int[]{0x80000001, 0x00000003});
+		assertEquals("1000000000000000000000000000000100000000000000000000000000000011", t9.toString());
+		
+		TaintSet s1 = TaintSet.generate(t9, 64, t9);
+		assertEquals(t9.toString() + t9.toString(), s1.toString());
+		
+		TaintSet s2 = TaintSet.generate(t9, 70, t9);
+		assertEquals(t9.toString() + "000000" + t9.toString(), s2.toString());
+		
+		// a substring starting inside the first word, moved to the right
+		TaintSet s3 = TaintSet.generate(s2, 31, 70);
+		assertEquals("100000000000000000000000000000011000000", s3.toString(39));
+		assertEquals("00000" + "10000000000000000000000000000001100000", TaintSet.generate(null, 5, s3, 39).toString(43));
+		assertFalse(s3.hasTaintBetween(2, 31));
+		assertTrue(s3.hasTaintBetween(2, 32));
+		assertFalse(s3.hasTaintBetween(33, 100));
+	}
+	
+	// "My name is John Smith" with both names tainted
+	public void testIntervalList() {
+		TaintSet name = TaintSet.generate(new boolean[]{false, false, false, false, false, false, false, false, false, false, false, true, true, true, true, false, true, true, true, true, true});
+		assertTrue(name.intervalList());
+		assertEquals("000000000001111011111", name.toString());
+		assertTrue(name.isTaintedAt(16));
+		assertFalse(name.isTaintedAt(15));
+		assertFalse(name.hasTaintBetween(0, 11));
+		assertTrue(name.hasTaintBetween(14, 16));
+		assertFalse(name.hasTaintBetween(15, 16));
+		
+		// concat and substring stay interval lists
+		TaintSet s1 = TaintSet.generate(name, 21, t1, 3);
+		assertTrue(s1.intervalList());
+		assertEquals("000000000001111011111011", s1.toString());
+		assertTrue(TaintSet.generate(s1, 12, 18).intervalList());
+		assertEquals("111011", TaintSet.generate(s1, 12, 18).toString());
+		assertTrue(TaintSet.generate(s1, 16, 21) == TaintSet.allTainted);
+		
+		// builder operations
+		assertEquals("00000000000111100011111", TaintSet.move(TaintSet.makeCopy(name), 2, 15).toString());
+		assertEquals("000000000001111111111", TaintSet.union(TaintSet.makeCopy(name), 15, t0, 1).toString());
+		assertEquals("0000000000011110011", TaintSet.replace(TaintSet.makeCopy(name), 16, 21, 3, t1).toString());
+		
+		// concatenated behind other strings, an unbounded list keeps its tail
+		TaintSet unbounded = TaintSet.generate(name, 24, TaintSet.allTainted);
+		assertTrue(unbounded.intervalList());
+		TaintSet s3 = TaintSet.generate(null, 5, unbounded);
+		assertTrue(s3.intervalList());
+		assertEquals("0000000000000000111101111100011111111", s3.toString(37));
+		assertEquals(Integer.MAX_VALUE, s3.getLastTaint());
+		assertTrue(s3.isTaintedAt(1 << 20));
+		assertEquals("0110000000000000000111101111100011111111", TaintSet.generate(t1, 3, s3).toString(40));
+		assertTrue(TaintSet.generate(t1, 3, s3).isTaintedAt(1 << 20));
+		assertEquals("1111011111000111", TaintSet.generate(s3, 16, 1 << 20).toString(16));
+		
+		// past the configured number of intervals, a bitmap
+		TaintSet.setMaxIntervals(2);
+		TaintSet s2 = TaintSet.generate(name, 21, t1, 3);
+		assertFalse(s2.intervalList());
+		assertFalse(s2.singleInterval());
+		assertEquals(s1.toString(), s2.toString());
+	}
+	
+	// "a=1&b=2&c=3" with the values tainted
+	public void testInlineBitmap() {
+		TaintSet.setMaxIntervals(2);
+		
+		TaintSet query = TaintSet.generate(new boolean[]{false, false, true, false, false, false, true, false, false, false, true});
+		assertTrue(query.inlineBitmap());
+		assertEquals("00100010001", query.toString());
+		assertTrue(query.isTaintedAt(6));
+		assertFalse(query.hasTaintBetween(7, 10));
+		
+		TaintSet s1 = TaintSet.generate(query, 11, t1, 3);
+		assertTrue(s1.inlineBitmap());
+		assertEquals("00100010001011", s1.toString());
+		assertTrue(TaintSet.generate(s1, 10, 14).inlineBitmap());
+		assertTrue(TaintSet.generate(s1, 6, 7) == TaintSet.allTainted);
+		
+		// builder operations work on the word in place
+		assertEquals("0010001110001", TaintSet.union(TaintSet.move(TaintSet.makeCopy(query), 2, 7), 7, t0, 2).toString());
+		assertEquals("0010011", TaintSet.replace(TaintSet.makeCopy(query), 4, 11, 3, t1).toString());
+		TaintSet s2 = TaintSet.makeCopy(query);
+		s2 = TaintSet.set(s2, 4, true);
+		s2 = TaintSet.set(s2, 10, false);
+		assertTrue(s2.inlineBitmap());
+		assertEquals("0010101", s2.toString(7));
+		
+		// substrings of a bitmap that fit in a word are copied into one
+		TaintSet t9 = new TaintSet(0, 96, new int[]{0x80000001, 0x00000003, 0x00010001});
+		assertTrue(TaintSet.generate(t9, 40, 96).inlineBitmap());
+		assertEquals(t9.toString(96).substring(40), TaintSet.generate(t9, 40, 96).toString(56));
+		
+	}
+	
+	// list += s + ","
+	public void testComplement() {
+		TaintSet item = TaintSet.generate(70);
+		TaintSet list = null;
+		boolean[] expected = new boolean[20 * 71];
+		
+		for (int i = 0; i < 20; i++) {
+			list = TaintSet.generate(TaintSet.generate(list, i * 71, item, 70), i * 71 + 70, null, 1);
+			Arrays.fill(expected, i * 71, i * 71 + 70, true);
+		}
+		
+		assertTrue(list.complement());
+		assertTrue(Arrays.equals(expected, list.getTaintArray(expected.length)));
+		assertTrue(list.isTaintedAt(69));
+		assertFalse(list.isTaintedAt(70));
+		assertTrue(list.isTaintedAt(71));
+		assertFalse(list.hasTaintBetween(141, 142));
+		assertTrue(list.hasTaintBetween(141, 143));
+		assertFalse(list.hasTaintBetween(1419, 1500));
+		
+		// substrings and concatenations of the list
+		assertTrue(TaintSet.generate(list, 71, 141) == TaintSet.allTainted);
+		assertEquals("1101", TaintSet.generate(list, 139, 143).toString(4));
+		TaintSet s1 = TaintSet.generate(list, expected.length, list, expected.length);
+		assertTrue(s1.complement());
+		assertTrue(Arrays.equals(expected, TaintSet.generate(s1, expected.length, 2 * expected.length).getTaintArray(expected.length)));
+	}
+	
+	// a 10K page with a few tainted chars scattered through it
+	public void testPositionList() {
+		boolean[] page = new boolean[10000];
+		int[] tainted = {17, 1024, 1025, 4000, 6502, 9998};
+		for (int i = 0; i < tainted.length; i++) {
+			page[tainted[i]] = true;
+		}
+		
+		TaintSet s1 = TaintSet.generate(page);
+		assertTrue(s1.positionList());
+		assertTrue(Arrays.equals(page, s1.getTaintArray(page.length)));
+		assertTrue(s1.isTaintedAt(1025));
+		assertFalse(s1.isTaintedAt(1026));
+		assertFalse(s1.hasTaintBetween(18, 1024));
+		assertTrue(s1.hasTaintBetween(18, 1025));
+		
+		// substrings and concatenations of the list
+		assertEquals("01100", TaintSet.generate(s1, 1023, 1028).toString(5));
+		TaintSet s2 = TaintSet.generate(s1, page.length, s1, page.length);
+		assertTrue(s2.positionList());
+		assertTrue(s2.isTaintedAt(page.length + 6502));
+		assertTrue(Arrays.equals(page, TaintSet.generate(s2, page.length, 2 * page.length).getTaintArray(page.length)));
+		
+		// a builder appending to the list converts it to a bitmap
+		TaintSet s3 = TaintSet.append(TaintSet.makeCopy(s1), page.length, TaintSet.generate(3), 3, page.length + 16);
+		assertTrue(s3.isTaintedAt(4000));
+		assertTrue(s3.hasTaintBetween(page.length, page.length + 1));
+	}
+	
+	// a long report with every third char tainted
+	public void testChunks() {
+		boolean[] report = new boolean[200000];
+		for (int i = 0; i < report.length; i += 3) {
+			report[i] = true;
+		}
+		
+		TaintSet s1 = TaintSet.generate(report);
+		assertTrue(s1.chunked());
+		assertTrue(Arrays.equals(report, s1.getTaintArray(report.length)));
+		assertTrue(s1.isTaintedAt(65535 * 3));
+		assertFalse(s1.isTaintedAt(65535 * 3 + 1));
+		assertTrue(s1.hasTaintBetween(199997, 199999));
+		assertFalse(s1.hasTaintBetween(199999, 200000));
+		
+		// substrings across a chunk boundary stay chunked; within a chunk they're a plain bitmap
+		TaintSet s2 = TaintSet.generate(s1, 50001, 150001);
+		assertTrue(s2.chunked());
+		assertTrue(Arrays.equals(Arrays.copyOfRange(report, 50001, 150001), s2.getTaintArray(100000)));
+		assertFalse(TaintSet.generate(s1, 70000, 70100).chunked());
+		assertEquals("010010", TaintSet.generate(s1, 70001, 70007).toString(6));
+		
+		// concat shares the chunks of both sides
+		TaintSet s3 = TaintSet.generate(s2, 100000, s1, report.length);
+		boolean[] both = new boolean[300000];
+		System.arraycopy(report, 50001, both, 0, 100000);
+		System.arraycopy(report, 0, both, 100000, 200000);
+		assertTrue(Arrays.equals(both, s3.getTaintArray(both.length)));
+		
+		// a builder appending short tainted strings
+		TaintSet builder = TaintSet.makeCopy(TaintSet.append(null, 0, s1, report.length, report.length + 16));
+		for (int i = 0; i < 100; i++) {
+			builder = TaintSet.append(builder, report.length + i * 4, t1, 4, report.length + 400);
+		}
+		assertTrue(builder.chunked());
+		assertEquals("0110011001100110", TaintSet.generate(builder, 200000, 200016).toString(16));
+		assertTrue(Arrays.equals(report, TaintSet.generate(builder, 0, 200000).getTaintArray(report.length)));
+		assertTrue(Arrays.equals(report, s1.getTaintArray(report.length)));
+		
+		// a copy owns a tail of its own, so appends to it leave the builder and the other copies alone
+		int length = report.length + 400;
+		TaintSet copy = TaintSet.makeCopy(builder);
+		builder = TaintSet.append(builder, length, t1, 4, length + 4);
+		TaintSet frozen = TaintSet.freeze(builder);
+		TaintSet copy1 = TaintSet.append(TaintSet.makeCopy(frozen), length + 4, t0, 2, length + 6);
+		TaintSet copy2 = TaintSet.append(TaintSet.makeCopy(frozen), length + 4, t1, 4, length + 8);
+		assertEquals("0110", TaintSet.generate(frozen, length, length + 4).toString(4));
+		assertEquals(length - 1, copy.getLastTaint());
+		assertEquals(length + 3, frozen.getLastTaint());
+		assertEquals("011011", TaintSet.generate(copy1, length, length + 6).toString(6));
+		assertEquals("01100110", TaintSet.generate(copy2, length, length + 8).toString(8));
+	}
+	
+	// bitmaps that become contiguous go back to a single interval
+	public void testNormalize() {
+		// "a bbbb..." with the space clean
+		TaintSet t9 = new TaintSet(0, 192, new int[]{0xBFFFFFFF, 0xFFFFFFFF, 0xFFFFFFFF, 0xFFFFFFFF, 0xFFFFFFFF, 0xFFFFFFFF});
+		assertFalse(t9.singleInterval());
+		assertTrue(TaintSet.generate(t9, 2, 192) == TaintSet.allTainted);
+		assertTrue(TaintSet.generate(t9, 2, 200).singleInterval());
+		
+		TaintSet s1 = TaintSet.makeCopy(t9);
+		s1 = TaintSet.set(s1, 0, false);
+		assertTrue(s1.singleInterval());
+		assertEquals(2, s1.getFirstTaint());
+		assertEquals(190, s1.getLength());
+		
+		TaintSet s2 = TaintSet.replace(TaintSet.makeCopy(t9), 0, 2, 2, TaintSet.generate(2));
+		assertTrue(s2.singleInterval());
+		assertEquals(t9.toString(192).replace('0', '1'), s2.toString());
+		
+		// the offset and length of a substring shrink to its first and last taint
+		TaintSet t10 = new TaintSet(0, 160, new int[]{0, 0, 0x0000FFFF, 0x80000001, 0xFFFFFFFF});
+		TaintSet s3 = TaintSet.generate(t10, 10, 160);
+		assertEquals(70, s3.getFirstTaint());
+		assertEquals(80, s3.getLength());
+		assertEquals(t10.toString(160).substring(10), s3.toString(150));
+	}
+	
+	// strings share their builder's taint until the builder changes it
+	public void testFrozen() {
+		TaintSet t9 = new TaintSet(0, 96, new int[]{0x80000001, 0x00000003, 0x00010001});
+		TaintSet builder = TaintSet.append(null, 0, t9, 96, 200);
+		TaintSet substring = TaintSet.generate(builder, 0, 96);
+		assertTrue(builder.frozen());
+		
+		// appending to a frozen set leaves it alone
+		TaintSet appended = TaintSet.append(builder, 96, TaintSet.generate(4), 4, 200);
+		assertTrue(appended != builder);
+		assertFalse(appended.frozen());
+		assertEquals(t9.toString(96), substring.toString(96));
+		assertEquals(t9.toString(96) + "1111", appended.toString(100));
+		
+		// so does setting a char, and a union
+		TaintSet string = TaintSet.freeze(appended);
+		TaintSet s1 = TaintSet.set(string, 2, true);
+		assertTrue(s1 != string);
+		assertFalse(string.isTaintedAt(2));
+		assertTrue(s1.isTaintedAt(2));
+		TaintSet s2 = TaintSet.union(string, 40, t1);
+		assertTrue(s2 != string);
+		assertEquals(t9.toString(96) + "1111", string.toString(100));
+		
+		// once copied, the builder modifies its own set in place
+		assertTrue(TaintSet.set(s1, 3, true) == s1);
+		assertTrue(TaintSet.append(TaintSet.ensureCapacity(s1, 200), 100, t1, 3, 200) == s1);
+		assertNull(TaintSet.set(null, 3, false));
+		assertEquals("0001", TaintSet.set(null, 3, true).toString());
+	}
+	
+	public void testRope() {
+		TaintSet t9 = new TaintSet(0, 96, new int[]{0x80000001, 0x00000003, 0x00010001});
+		TaintSet.setRopeSize(256);
+		
+		// repeated concatenation on either side stays balanced
+		TaintSet s = null;
+		String expected = "";
+		for (int i = 0; i < 256; i++) {
+			s = (i & 1) == 0 ? TaintSet.generate(s, i * 96, t9, 96) : TaintSet.generate(t9, 96, s, i * 96);
+			expected += t9.toString(96);
+		}
+		assertTrue(s.rope());
+		assertTrue(s.getDepth() <= 12);
+		assertEquals(expected, s.toString(256 * 96));
+		assertEquals(96 * 256, s.getLastTaint());
+		
+		// substrings reuse the pieces they cover
+		TaintSet sub = TaintSet.generate(s, 96 * 100 + 10, 96 * 200);
+		assertTrue(sub.rope());
+		assertEquals(expected.substring(96 * 100 + 10, 96 * 200), sub.toString(96 * 100 - 10));
+		assertEquals(t9.toString(96).substring(31), TaintSet.generate(s, 96 * 7 + 31, 96 * 8).toString(65));
+		assertFalse(TaintSet.generate(s, 96 * 7, 96 * 8).rope());
+	}
+	
+	public void testLazy() {
+		TaintSet t9 = new TaintSet(0, 96, new int[]{0x80000001, 0x00000003, 0x00010001});
+		String s = t9.toString(96) + "1111";
+		TaintSet.setLazyDepth(3);
+		
+		TaintSet s1 = TaintSet.generate(t9, 96, TaintSet.generate(4), 4);
+		TaintSet s2 = TaintSet.generate(s1, 90, 100);
+		TaintSet s3 = TaintSet.generate(null, 5, s2, 10);
+		assertTrue(s1.lazy() && s2.lazy() && s3.lazy());
+		assertTrue(t9.frozen());
+		
+		// past the depth cap the operation is carried out, along with those under it
+		TaintSet s4 = TaintSet.generate(s3, 15, s3, 15);
+		assertFalse(s4.lazy());
+		assertFalse(s1.lazy() || s2.lazy() || s3.lazy());
+		assertEquals("00000" + s.substring(90), s3.toString(15));
+		assertEquals(s3.toString(15) + s3.toString(15), s4.toString(30));
+		
+		// reading the taint computes it once
+		TaintSet s5 = TaintSet.generate(s1, 30, 40);
+		assertTrue(s5.isTaintedAt(1));
+		assertFalse(s5.lazy());
+		assertEquals(s.substring(30, 40), s5.toString(10));
+		
+		// a deferred set may turn out to have no taint
+		TaintSet s6 = TaintSet.generate(s1, 1, 20);
+		assertNotNull(s6);
+		assertFalse(s6.hasTaintBetween(0, 19));
+		assertNull(TaintSet.append(null, 0, s6, 19, 40));
+		assertNull(TaintSet.union(null, 5, s6));
+		assertFalse(TaintSet.tainted(s6));
+		assertTrue(TaintSet.tainted(TaintSet.generate(s1, 0, 20)));
+		assertFalse(TaintSet.tainted(null));
+	}
+	
+	public void testSharedIntervals() {
+		// small single intervals are shared, like allTainted
+		TaintSet s1 = TaintSet.generate(3, 10);
+		assertTrue(s1 == TaintSet.guardedGenerate(3, 10));
+		assertTrue(s1.frozen());
+		assertTrue(TaintSet.generate(TaintSet.generate(20, 27), 17, 40) == s1);
+		assertTrue(TaintSet.generate(1000, 1010) != TaintSet.generate(1000, 1010));
+		
+		// and never modified through a builder
+		TaintSet s2 = TaintSet.set(s1, 12, true);
+		TaintSet s3 = TaintSet.append(TaintSet.generate(0, 4), 10, s1, 10, 40);
+		assertTrue(s2 != s1 && s3 != s1);
+		assertEquals("0001111111001", s2.toString(13));
+		assertEquals("1111000000" + "0001111111", s3.toString(20));
+		assertEquals("0001111111", TaintSet.generate(3, 10).toString(10));
+	}
+	
+	public void testIntern() {
+		TaintSet t9 = new TaintSet(0, 96, new int[]{0x80000001, 0x00000003, 0x00010001});
+		
+		// equality and hashing go by the taint, not the representation
+		TaintSet bitmap = new TaintSet(0, 64, new int[]{0xffff0000, 0});
+		assertEquals(TaintSet.generate(0, 16), bitmap);
+		assertEquals(TaintSet.generate(0, 16).hashCode(), bitmap.hashCode());
+		assertFalse(TaintSet.generate(0, 17).equals(bitmap));
+		TaintSet unbounded = TaintSet.generate(TaintSet.generate(0, 3), 5, TaintSet.allTainted);
+		assertEquals(TaintSet.union(TaintSet.generate(0, 3), 5, TaintSet.allTainted), unbounded);
+		assertEquals(TaintSet.union(TaintSet.generate(0, 3), 5, TaintSet.allTainted).hashCode(), unbounded.hashCode());
+		assertFalse(unbounded.equals(TaintSet.generate(0, 3)));
+		
+		// offset ropes whose unbounded tail ends their last chunk, nested either way
+		TaintSet.setRopeSize(64);
+		TaintSet ropeA = TaintSet.generate(null, 10, TaintSet.generate(TaintSet.generate(t9, 96, t9, 96), 192, TaintSet.allTainted));
+		TaintSet ropeB = TaintSet.generate(null, 10, TaintSet.generate(TaintSet.generate(t9, 96, t1, 3), 192, TaintSet.allTainted));
+		TaintSet nested = TaintSet.generate(null, 10, TaintSet.generate(t9, 96, TaintSet.generate(t9, 96, TaintSet.allTainted)));
+		assertTrue(ropeA.rope());
+		assertFalse(ropeA.equals(ropeB));
+		assertFalse(ropeA.hashCode() == ropeB.hashCode());
+		assertEquals(ropeA, nested);
+		assertEquals(ropeA.hashCode(), nested.hashCode());
+		
+		// builders handing identical bitmaps to strings share one array
+		TaintSet.setInterning(true);
+		long lookups = TaintSet.getInternLookups();
+		long hits = TaintSet.getInternHits();
+		TaintSet[] strings = new TaintSet[2];
+		
+		for (int i = 0; i < strings.length; i++) {
+			TaintSet builder = TaintSet.append(null, 0, TaintSet.generate(0, 1), 1, 200);
+			builder = TaintSet.append(builder, 100, t9, 96, 200);
+			strings[i] = TaintSet.freeze(builder);
+		}
+		
+		assertEquals(2, TaintSet.getInternLookups() - lookups);
+		assertEquals(1, TaintSet.getInternHits() - hits);
+		assertEquals(strings[0], strings[1]);
+		assertTrue(TaintSet.getInternSize() > 0);
+		
+		// and still copy it before they modify it
+		String expected = strings[1].toString(196);
+		TaintSet.set(strings[0], 150, true);
+		assertEquals(expected, strings[1].toString(196));
+	}
+	
+	public void testOffHeap() {
+		boolean[] page = new boolean[5000];
+		for (int i = 0; i < page.length; i++) {
+			page[i] = i % 7 == 0 || (i > 3000 && i < 3500);
+		}
+		
+		TaintSet.setOffHeapSize(1024);
+		
+		// a large bitmap leaves the heap when a string takes it
+		TaintSet s1 = TaintSet.freeze(TaintSet.generate(page));
+		assertTrue(s1.offHeap());
+		assertTrue(Arrays.equals(page, s1.getTaintArray(page.length)));
+		assertEquals(TaintSet.generate(page), s1);
+		assertFalse(s1.hasTaintBetween(3501, 3507));
+		assertTrue(Arrays.equals(Arrays.copyOfRange(page, 100, 4100), TaintSet.generate(s1, 100, 4100).getTaintArray(4000)));
+		
+		// and is copied back by a builder
+		TaintSet builder = TaintSet.append(s1, page.length, t1, 3, 6000);
+		assertFalse(builder.offHeap());
+		assertEquals(s1.toString(page.length) + t1.toString(3), builder.toString(page.length + 3));
+		
+		// chunks leave it together, each a slice of one buffer
+		TaintSet.setChunkSize(2048);
+		TaintSet s2 = TaintSet.generate(page);
+		int buffers = TaintSet.getOffHeapBuffers();
+		TaintSet s3 = TaintSet.freeze(s2);
+		assertTrue(s3.chunked() && s3.offHeap());
+		assertTrue(TaintSet.getOffHeapBuffers() <= buffers + 1);
+		assertFalse(s2.offHeap());
+		assertEquals(s2, s3);
+		boolean[] both = new boolean[page.length << 1];
+		System.arraycopy(page, 0, both, 0, page.length);
+		System.arraycopy(page, 0, both, page.length, page.length);
+		TaintSet s4 = TaintSet.generate(TaintSet.generate(s3, page.length, s3, page.length), 2500, 7500);
+		assertTrue(Arrays.equals(Arrays.copyOfRange(both, 2500, 7500), s4.getTaintArray(5000)));
+		
+		// a bitmap that would go over the budget stays on the heap
+		TaintSet.setChunkSize(chunksize);
+		assertTrue(TaintSet.getOffHeapBytes() >= 8 * ((page.length + 63) >> 6));
+		TaintSet.setOffHeapBudget(0);
+		TaintSet s5 = TaintSet.freeze(TaintSet.generate(page));
+		assertFalse(s5.offHeap());
+		assertEquals(s1, s5);
+		TaintSet.setOffHeapBudget(offheapbudget);
+		assertTrue(TaintSet.freeze(TaintSet.generate(page)).offHeap());
+		
+		TaintSet.setOffHeapSize(Integer.MAX_VALUE);
+		assertFalse(TaintSet.freeze(TaintSet.generate(page)).offHeap());
+	}
+	
+	public void testCompact() {
+		boolean[] body = new boolean[20000];
+		for (int i = 0; i < body.length; i++) {
+			body[i] = (i / 3) % 2 == 0;
+		}
+		
+		// a short substring copies its part of the bitmap instead of keeping all of it
+		TaintSet s1 = TaintSet.generate(body);
+		long compactions = TaintSet.getCompactions();
+		long bytes = TaintSet.getCompactedBytes();
+		TaintSet s2 = TaintSet.generate(s1, 5000, 5200);
+		assertEquals(1, TaintSet.getCompactions() - compactions);
+		assertTrue(TaintSet.getCompactedBytes() - bytes >= 300 * 8);
+		assertFalse(s1.frozen());
+		assertTrue(Arrays.equals(Arrays.copyOfRange(body, 5000, 5200), s2.getTaintArray(200)));
+		
+		// a long one shares it
+		TaintSet s3 = TaintSet.generate(s1, 3000, 18000);
+		assertEquals(1, TaintSet.getCompactions() - compactions);
+		assertTrue(s1.frozen());
+		assertTrue(Arrays.equals(Arrays.copyOfRange(body, 3000, 18000), s3.getTaintArray(15000)));
+		
+		TaintSet.setCompactFraction(0);
+		TaintSet s4 = TaintSet.generate(s1, 5000, 5200);
+		assertEquals(1, TaintSet.getCompactions() - compactions);
+		assertEquals(s2, s4);
+	}
+	
+	public void testCoarse() {
+		TaintSet.setCoarseGrain(64);
+		TaintSet.setCoarseSize(10000);
+		
+		boolean[] body = new boolean[20000];
+		body[100] = true;
+		body[130] = true;
+		body[5000] = true;
+		body[19999] = true;
+		for (int i = 8000; i < 9400; i += 2) {
+			body[i] = true;
+		}
+		
+		// a bit per block: every char of a block with a tainted char reads as tainted
+		TaintSet s1 = TaintSet.generate(body);
+		assertTrue(s1.coarse());
+		assertEquals(64, s1.getBlockSize());
+		assertEquals(64, s1.getFirstTaint());
+		assertTrue(s1.isTaintedAt(64));
+		assertTrue(s1.isTaintedAt(127));
+		assertTrue(s1.isTaintedAt(128));
+		assertTrue(s1.isTaintedAt(191));
+		assertFalse(s1.isTaintedAt(192));
+		assertFalse(s1.hasTaintBetween(192, 4992));
+		assertTrue(s1.hasTaintBetween(4992, 4993));
+		assertTrue(s1.isTaintedAt(19999));
+		
+		boolean[] taint = s1.getTaintArray(body.length);
+		for (int i = 0; i < body.length; i++) {
+			assertTrue(!body[i] || taint[i]);
+		}
+		
+		// a short substring is exact again, each tainted block whole
+		TaintSet s2 = TaintSet.generate(s1, 100, 200);
+		assertFalse(s2.coarse());
+		assertTrue(s2.isTaintedAt(0));
+		assertTrue(s2.isTaintedAt(91));
+		assertFalse(s2.isTaintedAt(92));
+		
+		// a long one stays coarse; blocks that straddle its own blocks taint both
+		TaintSet s3 = TaintSet.generate(s1, 32, 15032);
+		assertTrue(s3.coarse());
+		assertTrue(s3.isTaintedAt(0));
+		assertTrue(s3.isTaintedAt(191));
+		assertFalse(s3.isTaintedAt(192));
+		assertTrue(s3.isTaintedAt(4968));
+		
+		// concatenation appends b2's blocks after len1
+		TaintSet s4 = TaintSet.generate(s1, body.length, s1, body.length);
+		assertTrue(s4.coarse());
+		assertTrue(s4.isTaintedAt(20000 + 64));
+		assertFalse(s4.isTaintedAt(20000 + 256));
+		assertTrue(s4.hasTaintBetween(39999, 40000));
+		
+		// untainting a char leaves its block tainted
+		TaintSet s5 = TaintSet.set(TaintSet.makeCopy(s1), 100, false);
+		assertTrue(s5.isTaintedAt(100));
+		TaintSet s6 = TaintSet.set(TaintSet.makeCopy(s1), 10000, true);
+		assertTrue(s6.isTaintedAt(10000));
+		assertTrue(s6.isTaintedAt(9984));
+		
+		TaintSet.setCoarseGrain(0);
+		TaintSet s7 = TaintSet.generate(body);
+		assertFalse(s7.coarse());
+		assertFalse(s7.isTaintedAt(64));
+		assertEquals(1, s7.getBlockSize());
+	}
+	
+	public void testRepresentation() {
+		assertSame(TaintSet.HYBRID, TaintSet.getRepresentation());
+		assertEquals("hybrid", TaintSet.getRepresentation().toString());
+		
+		boolean[] t1 = new boolean[300];
+		boolean[] t2 = new boolean[100];
+		for (int i = 0; i < t1.length; i++) {
+			t1[i] = i % 7 == 0 || (i > 100 && i < 150);
+		}
+		t2[40] = true;
+		
+		// the flag array baseline gives the same taint as the hybrid representation
+		TaintSet.Representation flags = TaintSet.FLAGS;
+		TaintSet f1 = flags.generate(t1, 0, -1);
+		TaintSet f2 = flags.generate(t2, 0, -1);
+		TaintSet h1 = TaintSet.HYBRID.generate(t1, 0, -1);
+		TaintSet h2 = TaintSet.HYBRID.generate(t2, 0, -1);
+		assertTrue(f1.flagArray());
+		assertTrue(f1.frozen());
+		assertFalse(h1.flagArray());
+		assertEquals(h1, f1);
+		assertEquals(h1.hashCode(), f1.hashCode());
+		assertEquals(41, f2.getLastTaint());
+		
+		TaintSet f3 = flags.concat(f1, 300, f2, 100);
+		assertTrue(f3.flagArray());
+		assertEquals(TaintSet.HYBRID.concat(h1, 300, h2, 100), f3);
+		assertEquals(TaintSet.HYBRID.substring(h1, 90, 260), flags.substring(f1, 90, 260));
+		assertEquals(TaintSet.HYBRID.replace(h1, 10, 200, 100, h2), flags.replace(f1, 10, 200, 100, f2));
+		assertEquals(TaintSet.HYBRID.move(h1, 50, 120), flags.move(f1, 50, 120));
+		assertEquals(TaintSet.HYBRID.union(TaintSet.makeCopy(h1), 250, h2, 100), flags.union(f1, 250, f2, 100));
+		assertEquals(TaintSet.HYBRID.set(TaintSet.makeCopy(h1), 3, true), flags.set(f1, 3, true));
+		assertNull(flags.set(f2, 40, false));
+		assertTrue(flags.hasTaintBetween(f2, 30, 41));
+		assertFalse(flags.hasTaintBetween(f2, 41, 400));
+		assertTrue(flags.isTaintedAt(f1, 147));
+		
+		// each accepts the other's sets; taint of unknown length stays hybrid
+		assertEquals(f3, TaintSet.HYBRID.concat(f1, 300, f2, 100));
+		assertEquals(f3, flags.concat(h1, 300, h2, 100));
+		TaintSet h3 = TaintSet.HYBRID.set(f1, 2, true);
+		assertFalse(h3.flagArray());
+		assertTrue(h3.isTaintedAt(2));
+		assertFalse(f1.isTaintedAt(2));
+		assertEquals(Integer.MAX_VALUE, flags.union(f1, 0, TaintSet.allTainted, Integer.MAX_VALUE).getLastTaint());
+		assertFalse(flags.concat(f1, 300, TaintSet.allTainted, Integer.MAX_VALUE).flagArray());
+		assertTrue(flags.concat(f1, 300, TaintSet.allTainted, 10).flagArray());
+	}
+	
+	public void testAdaptive() {
+		TaintSet.setAdaptiveBounds(2, 32);
+		TaintSet.setAdaptive(true);
+		
+		// 10 runs over 10000 chars: an interval list is smaller than the bitmap
+		boolean[] sparse = new boolean[10000];
+		for (int i = 0; i < 10; i++) {
+			sparse[i * 1000] = sparse[i * 1000 + 1] = sparse[i * 1000 + 2] = true;
+		}
+		assertFalse(TaintSet.generate(sparse).intervalList());
+		for (int i = 0; i < 1024; i++) {
+			TaintSet.generate(sparse);
+		}
+		assertEquals(15, TaintSet.getMaxIntervals());
+		assertTrue(TaintSet.generate(sparse).intervalList());
+		
+		// 10 runs over 200 chars: the bitmap is smaller
+		boolean[] dense = new boolean[200];
+		for (int i = 0; i < 10; i++) {
+			dense[i * 20] = dense[i * 20 + 1] = true;
+		}
+		for (int i = 0; i < 3000; i++) {
+			TaintSet.generate(dense);
+		}
+		assertEquals(2, TaintSet.getMaxIntervals());
+		assertFalse(TaintSet.generate(dense).intervalList());
+		
+		// never past the bounds
+		TaintSet.setAdaptiveBounds(4, 8);
+		for (int i = 0; i < 3000; i++) {
+			TaintSet.generate(sparse);
+		}
+		assertEquals(8, TaintSet.getMaxIntervals());
+		
+		TaintSet.setAdaptive(false);
+		assertFalse(TaintSet.getAdaptive());
+	}
+	
+	public void testLabels() {
+		final int QUERY = 1, COOKIE = 2;
+		TaintSet query = TaintSet.label(TaintSet.generate(0, 10), QUERY);
+		TaintSet cookie = TaintSet.label(TaintSet.generate(2, 6), COOKIE);
+		assertTrue(query.labelled());
+		assertEquals(1 << QUERY, query.getLabelsAt(5));
+		assertEquals(0, query.getLabelsAt(10));
+		
+		// concatenation keeps each char's source
+		TaintSet s1 = TaintSet.generate(query, 10, cookie, 8);
+		assertTrue(s1.labelled());
+		assertEquals(1 << QUERY, s1.getLabelsAt(9));
+		assertEquals(0, s1.getLabelsAt(10));
+		assertEquals(1 << COOKIE, s1.getLabelsAt(12));
+		assertEquals(1 << QUERY | 1 << COOKIE, s1.getLabelsBetween(0, 18));
+		assertEquals(TaintSet.generate(TaintSet.generate(0, 10), 10, TaintSet.generate(2, 6), 8), s1);
+		assertTrue(s1.isTaintedAt(15));
+		assertFalse(s1.hasTaintBetween(16, 18));
+		
+		// substrings with one label left keep it; with none left, plain taint
+		TaintSet s2 = TaintSet.generate(s1, 11, 18);
+		assertEquals(1 << COOKIE, s2.getLabelsBetween(0, 7));
+		assertEquals(1, s2.getFirstTaint());
+		assertNull(TaintSet.generate(s1, 16, 18));
+		
+		// mixed with unlabelled taint, and through a builder's operations
+		TaintSet s3 = TaintSet.generate(s1, 18, TaintSet.generate(0, 3), 3);
+		assertEquals(1 << TaintSet.UNLABELLED, s3.getLabelsAt(19));
+		s3 = TaintSet.union(s3, 0, cookie, 8);
+		assertEquals(1 << QUERY | 1 << COOKIE, s3.getLabelsAt(3));
+		s3 = TaintSet.move(s3, 5, 0);
+		assertEquals(1 << COOKIE, s3.getLabelsAt(5 + 13));
+		s3 = TaintSet.replace(s3, 5, 15, 2, null);
+		assertEquals(0, s3.getLabelsBetween(5, 7));
+		assertEquals(1 << COOKIE, s3.getLabelsAt(7 + 3));
+		s3 = TaintSet.set(s3, 0, true);
+		assertEquals(1 << TaintSet.UNLABELLED, s3.getLabelsAt(0));
+		s3 = TaintSet.set(s3, 10, false);
+		assertEquals(0, s3.getLabelsAt(10));
+		TaintSet s4 = TaintSet.append(s3, 30, query, 10, 40);
+		assertEquals(1 << QUERY, s4.getLabelsAt(35));
+		assertEquals(1 << COOKIE, s3.getLabelsAt(11));
+		
+		// unlabelled sets stay as they were
+		TaintSet plain = TaintSet.generate(0, 10);
+		assertFalse(plain.labelled());
+		assertEquals(1 << TaintSet.UNLABELLED, plain.getLabelsAt(0));
+		assertSame(TaintSet.allTainted, TaintSet.generate(TaintSet.allTainted, 2, 5));
+		assertFalse(TaintSet.label(s1, TaintSet.UNLABELLED).labelled());
+		assertEquals(s1, TaintSet.label(s1, TaintSet.UNLABELLED));
+	}
+	
+	public void testTaintTable() {
+		assertFalse(TaintTable.enabled);
+		
+		// looked up by identity, not by equals()
+		Object key1 = new String("abc");
+		Object key2 = new String("abc");
+		TaintSet taint = TaintSet.generate(1, 2);
+		int size = TaintTable.size();
+		assertNull(TaintTable.get(key1));
+		TaintTable.put(key1, taint);
+		assertSame(taint, TaintTable.get(key1));
+		assertNull(TaintTable.get(key2));
+		assertEquals(size + 1, TaintTable.size());
+		
+		TaintTable.put(key1, TaintSet.allTainted);
+		assertSame(TaintSet.allTainted, TaintTable.get(key1));
+		TaintTable.put(key2, null);
+		assertEquals(size + 1, TaintTable.size());
+		TaintTable.put(key1, null);
+		assertNull(TaintTable.get(key1));
+		assertEquals(size, TaintTable.size());
+		
+		// grows past its first table
+		Object[] keys = new Object[1000];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = new Object();
+			TaintTable.put(keys[i], TaintSet.generate(i, i + 1));
+		}
+		for (int i = 0; i < keys.length; i++) {
+			assertTrue(TaintTable.get(keys[i]).isTaintedAt(i));
+		}
+		assertEquals(size + keys.length, TaintTable.size());
+		
+		// a new taint replaces the entry, which is never modified in place
+		TaintSet other = TaintSet.generate(0, 1);
+		TaintTable.put(keys[1], other);
+		assertSame(other, TaintTable.get(keys[1]));
+		assertEquals(size + keys.length, TaintTable.size());
+		TaintTable.put(keys[1], TaintSet.generate(1, 2));
+		
+		// removed again, then many more that come and go: chains are copied on removal, and the filter rebuilt
+		for (int i = 0; i < keys.length; i += 2) {
+			TaintTable.put(keys[i], null);
+		}
+		for (int i = 0; i < keys.length; i++) {
+			assertEquals(i % 2 == 0, TaintTable.get(keys[i]) == null);
+		}
+		for (int i = 0; i < 100000; i++) {
+			Object key = new Object();
+			TaintTable.put(key, taint);
+			assertSame(taint, TaintTable.get(key));
+			TaintTable.put(key, null);
+			assertNull(TaintTable.get(key));
+		}
+		for (int i = 1; i < keys.length; i += 2) {
+			assertTrue(TaintTable.get(keys[i]).isTaintedAt(i));
+			TaintTable.put(keys[i], null);
+		}
+		assertEquals(size, TaintTable.size());
+	}
+	
+	public void testPackedInterval() {
+		assertEquals(0, TaintSet.packInterval(null));
+		assertEquals(0, TaintSet.packInterval(TaintSet.generate(new boolean[]{true, false, true})));
+		assertNull(TaintSet.unpackInterval(0));
+		assertSame(TaintSet.allTainted, TaintSet.unpackInterval(TaintSet.packInterval(TaintSet.allTainted)));
+		
+		long interval = TaintSet.packInterval(TaintSet.generate(2, 5));
+		assertTrue(interval > 0);
+		assertEquals(TaintSet.generate(2, 5), TaintSet.unpackInterval(interval));
+		assertTrue(TaintSet.intervalHasTaint(interval, 0, 3));
+		assertFalse(TaintSet.intervalHasTaint(interval, 0, 2));
+		assertFalse(TaintSet.intervalHasTaint(interval, 5, 10));
+		assertTrue(TaintSet.intervalTaintedAt(interval, 4));
+		
+		// substrings agree with generate(TaintSet, int, int)
+		for (int begin = 0; begin <= 7; begin++) {
+			for (int end = begin; end <= 7; end++) {
+				TaintSet expected = TaintSet.generate(TaintSet.generate(2, 5), begin, end);
+				TaintSet packed = TaintSet.unpackInterval(TaintSet.substringInterval(interval, begin, end));
+				assertTrue(Arrays.equals(TaintSet.getTaintArray(expected, end - begin), TaintSet.getTaintArray(packed, end - begin)));
+			}
+		}
+		assertEquals(-1, TaintSet.substringInterval(-1, 0, 1));
+		
+		// concatenations are packed only while they stay one interval
+		long head = TaintSet.packInterval(TaintSet.generate(1, 3)), tail = TaintSet.packInterval(TaintSet.generate(0, 2));
+		assertEquals(TaintSet.generate(1, 5), TaintSet.unpackInterval(TaintSet.concatInterval(head, 3, tail, 4)));
+		assertEquals(-1, TaintSet.concatInterval(head, 4, tail, 4));
+		assertEquals(TaintSet.generate(4, 6), TaintSet.unpackInterval(TaintSet.concatInterval(0, 4, tail, 4)));
+		assertEquals(TaintSet.generate(1, 3), TaintSet.unpackInterval(TaintSet.concatInterval(head, 4, 0, 4)));
+		assertEquals(0, TaintSet.concatInterval(0, 4, 0, 4));
+		assertEquals(-1, TaintSet.concatInterval(-1, 4, 0, 4));
+		
+		// allTainted is cut to the length of its string
+		long all = TaintSet.packInterval(TaintSet.allTainted);
+		assertEquals(TaintSet.generate(0, 7), TaintSet.unpackInterval(TaintSet.concatInterval(all, 3, all, 4)));
+	}
+	
+	public void testIntervalBuilders() {
+		Random random = new Random(25);
+		
+		// appending, inserting and replacing a single interval, whatever the builder's taint
+		for (int round = 0; round < 2000; round++) {
+			int len1 = 1 + random.nextInt(200), len2 = 1 + random.nextInt(100);
+			boolean[] taint = new boolean[len1];
+			int kind = random.nextInt(4);
+			
+			for (int i = 0; i < len1; i++) {
+				taint[i] = kind == 1 ? i >= len1 / 3 && i < len1 / 2 : kind > 1 && random.nextInt(kind * 2) == 0;
+			}
+			
+			TaintSet set = kind == 0 ? null : TaintSet.generate(taint);
+			int start = random.nextInt(len2), end = start + 1 + random.nextInt(len2 - start);
+			TaintSet interval = random.nextInt(5) == 0 ? TaintSet.allTainted : TaintSet.generate(start, end);
+			if (interval == TaintSet.allTainted) {
+				start = 0;
+				end = len2;
+			}
+			int capacity = len1 + len2 + random.nextInt(100);
+			
+			boolean[] expected = new boolean[len1 + len2];
+			System.arraycopy(taint, 0, expected, 0, len1);
+			Arrays.fill(expected, len1 + start, len1 + end, true);
+			TaintSet actual = TaintSet.append(TaintSet.makeCopy(set), len1, interval, len2, capacity);
+			assertTrue(Arrays.equals(expected, TaintSet.getTaintArray(actual, len1 + len2)));
+			
+			int index = random.nextInt(len1 + 1);
+			expected = new boolean[len1 + len2];
+			System.arraycopy(taint, 0, expected, 0, index);
+			System.arraycopy(taint, index, expected, index + len2, len1 - index);
+			Arrays.fill(expected, index + start, index + end, true);
+			actual = TaintSet.union(TaintSet.move(TaintSet.makeCopy(set), len2, index), index, interval, len2);
+			assertTrue(Arrays.equals(expected, TaintSet.getTaintArray(actual, len1 + len2)));
+			
+			int from = random.nextInt(len1), to = from + 1 + random.nextInt(len1 - from);
+			int length = len1 - (to - from) + len2;
+			expected = new boolean[length];
+			System.arraycopy(taint, 0, expected, 0, from);
+			Arrays.fill(expected, from + start, from + end, true);
+			System.arraycopy(taint, to, expected, from + len2, len1 - to);
+			actual = TaintSet.replace(TaintSet.makeCopy(set), from, to, len2, interval);
+			assertTrue(Arrays.equals(expected, TaintSet.getTaintArray(actual, length)));
+		}
+		
+		// a builder's interval is extended, and its bitmap set, in place
+		TaintSet set = TaintSet.generate(200, 1000);
+		assertFalse(set.frozen());
+		assertSame(set, TaintSet.append(set, 1000, TaintSet.generate(0, 5), 10, 2000));
+		assertEquals(TaintSet.generate(200, 1005), set);
+		
+		boolean[] taint = new boolean[100];
+		for (int i = 0; i < taint.length; i += 3) {
+			taint[i] = true;
+		}
+		set = TaintSet.ensureCapacity(TaintSet.append(null, 0, TaintSet.generate(taint), 100, 300), 300);
+		assertTrue(set.maxSize() >= 300);
+		assertSame(set, TaintSet.append(set, 100, TaintSet.generate(3, 7), 10, 300));
+		assertTrue(set.isTaintedAt(105));
+		assertFalse(set.isTaintedAt(102));
+		assertFalse(set.isTaintedAt(100));
+		assertTrue(set.isTaintedAt(99));
+		
+		// and a shared interval is taken as it is
+		assertSame(TaintSet.generate(3, 7), TaintSet.append(null, 0, TaintSet.generate(3, 7), 10, 300));
+	}
+	
+	// What String's substring, trim and concat do with a single interval, and a builder appending a shared one to its bitmap: none of it allocates
+	public void testPackedAllocation() {
+		java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+		
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			return; // no way to count allocations on this VM
+		}
+		
+		com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+		long interval = TaintSet.packInterval(TaintSet.generate(100, 5000));
+		boolean[] taint = new boolean[100];
+		for (int i = 0; i < taint.length; i += 3) {
+			taint[i] = true;
+		}
+		TaintSet builder = TaintSet.ensureCapacity(TaintSet.append(null, 0, TaintSet.generate(taint), 100, 8192), 8192);
+		assertTrue(builder.maxSize() >= 8192); // a bitmap with room, which the append fills in place
+		long sum = 0;
+		
+		for (int round = 0; round < 2; round++) { // the first round loads and compiles what the second one measures
+			long before = counter.getThreadAllocatedBytes(Thread.currentThread().getId());
+			
+			for (int i = 0; i < 100000; i++) {
+				long substring = TaintSet.substringInterval(interval, i & 1023, 6000 - (i & 511));
+				long concat = TaintSet.concatInterval(substring, 6000, interval, 6000);
+				sum += substring + concat + (TaintSet.intervalHasTaint(concat, i, i + 10) ? 1 : 0);
+			}
+			
+			builder = TaintSet.append(builder, 100 + round * 10, TaintSet.generate(3, 7), 10, 8192);
+			long allocated = counter.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+			
+			if (round == 1) {
+				assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+			}
+		}
+		
+		assertTrue(sum != 0);
+		assertTrue(builder.isTaintedAt(105));
+		assertTrue(builder.isTaintedAt(115));
+		assertFalse(builder.isTaintedAt(112));
+	}
+	
+	public void testTaintArray() {
+		Random random = new Random(21);
+		boolean[] sparse = new boolean[500], dense = new boolean[500], random50 = new boolean[500];
+		for (int i = 0; i < 500; i++) {
+			sparse[i] = i % 97 == 3;
+			dense[i] = i % 113 != 7;
+			random50[i] = random.nextBoolean();
+		}
+		TaintSet[] sets = {TaintSet.generate(sparse), TaintSet.generate(dense), TaintSet.generate(random50), TaintSet.generate(3, 300), TaintSet.allTainted,
+				TaintSet.generate(TaintSet.generate(random50), 500, TaintSet.generate(dense), 500), TaintSet.generate(TaintSet.generate(random50), 37, 450)};
+		
+		for (TaintSet set : sets) {
+			boolean[] taintarr = set.getTaintArray(1000);
+			for (int i = 0; i < 1000; i++) {
+				assertEquals(set.isTaintedAt(i), taintarr[i]);
+			}
+			
+			// into the middle of a used array, overwriting it
+			boolean[] into = new boolean[200];
+			Arrays.fill(into, true);
+			set.getTaintArray(431, 561, into, 50);
+			for (int i = 0; i < 130; i++) {
+				assertEquals(taintarr[431 + i], into[50 + i]);
+			}
+			assertTrue(into[49] && into[180]);
+		}
+	}
+	
+	public void testRuns() {
+		TaintSet interval = TaintSet.generate(3, 10);
+		assertEquals(3, interval.nextTainted(0));
+		assertEquals(5, interval.nextTainted(5));
+		assertEquals(-1, interval.nextTainted(10));
+		assertEquals(0, interval.nextUntainted(0));
+		assertEquals(10, interval.nextUntainted(3));
+		assertEquals(7, TaintSet.allTainted.nextTainted(7));
+		assertEquals(Integer.MAX_VALUE, TaintSet.allTainted.nextUntainted(7));
+		
+		// a bitmap, whose runs cross words
+		boolean[] taint = new boolean[300];
+		Arrays.fill(taint, 60, 70, true);
+		Arrays.fill(taint, 128, 250, true);
+		taint[299] = true;
+		TaintSet bitmap = TaintSet.generate(taint);
+		assertEquals(60, bitmap.nextTainted(0));
+		assertEquals(70, bitmap.nextUntainted(61));
+		assertEquals(128, bitmap.nextTainted(70));
+		assertEquals(250, bitmap.nextUntainted(128));
+		assertEquals(299, bitmap.nextTainted(250));
+		assertEquals(300, bitmap.nextUntainted(299));
+		
+		int[] expected = {60, 70, 128, 250, 299, 300};
+		int[] runs = new int[8];
+		assertEquals(3, bitmap.getTaintedRuns(0, 300, runs, 1));
+		assertTrue(Arrays.equals(expected, Arrays.copyOfRange(runs, 1, 7)));
+		assertEquals(1, bitmap.getTaintedRuns(100, 200, runs, 0));
+		assertEquals(128, runs[0]);
+		assertEquals(200, runs[1]);
+		assertEquals(1, bitmap.getTaintedRuns(0, 300, new int[3], 0));
+		
+		TaintSet.RunCursor cursor = new TaintSet.RunCursor();
+		for (int pass = 0; pass < 2; pass++) {
+			cursor.reset(bitmap, 300);
+			for (int i = 0; i < expected.length; i += 2) {
+				assertTrue(cursor.next());
+				assertEquals(expected[i], cursor.start());
+				assertEquals(expected[i + 1], cursor.end());
+			}
+			assertFalse(cursor.next());
+		}
+		assertFalse(cursor.reset(null, 10).next());
+		assertTrue(cursor.reset(TaintSet.allTainted, 10).next());
+		assertEquals(10, cursor.end());
+		assertFalse(cursor.next());
+		
+		// ropes with an offset, whose last chunk runs to the end: over a small bitmap, and over a long chunked one
+		TaintSet.setRopeSize(64);
+		TaintSet t9 = new TaintSet(0, 96, new int[]{0x80000001, 0x00000003, 0x00010001});
+		TaintSet rope = TaintSet.generate(null, 10, TaintSet.generate(TaintSet.generate(t9, 96, t9, 96), 192, TaintSet.allTainted));
+		assertTrue(rope.rope());
+		assertEquals(10, rope.nextTainted(0));
+		assertEquals(11, rope.nextUntainted(10));
+		assertEquals(201, rope.nextTainted(190));
+		assertEquals(190, rope.nextUntainted(190));
+		assertEquals(400, rope.nextTainted(400));
+		assertEquals(Integer.MAX_VALUE, rope.nextUntainted(201));
+		assertEquals(3, rope.getTaintedRuns(150, 300, runs, 0));
+		assertTrue(Arrays.equals(new int[]{168, 170, 185, 186, 201, 300}, Arrays.copyOf(runs, 6)));
+		cursor.reset(rope, 300);
+		for (int i = 0; i < 9; i++) {
+			assertTrue(cursor.next());
+		}
+		assertEquals(201, cursor.start());
+		assertEquals(300, cursor.end());
+		assertFalse(cursor.next());
+		
+		boolean[] report = new boolean[200000];
+		for (int i = 0; i < report.length; i += 3) {
+			report[i] = true;
+		}
+		TaintSet chunked = TaintSet.generate(null, 10, TaintSet.generate(TaintSet.generate(report), report.length, TaintSet.allTainted));
+		assertTrue(chunked.chunked());
+		assertEquals(199999, chunked.nextTainted(199998));
+		assertEquals(200003, chunked.nextUntainted(200003));
+		assertEquals(200009, chunked.nextUntainted(200009));
+		assertEquals(200008, chunked.nextTainted(200007));
+		assertEquals(200010, chunked.nextTainted(200009));
+		assertEquals(250000, chunked.nextTainted(250000));
+		assertEquals(Integer.MAX_VALUE, chunked.nextUntainted(200010));
+	}
+	
+	public void testSummary() {
+		int size = TaintSet.getSummarySize();
+		TaintSet.setSummarySize(1024);
+		
+		try {
+			Random random = new Random(23);
+			boolean[] taint = new boolean[20000];
+			for (int i = 0; i < taint.length; i++) {
+				taint[i] = i / 2500 % 3 == 1 && random.nextBoolean(); // long clean stretches between noisy ones
+			}
+			
+			TaintSet set = TaintSet.generate(taint);
+			assertFalse(set.hasTaintBetween(taint.length, taint.length + 1) || set.summarized());
+			
+			// only frozen sets are summarized, by the first range query on them
+			TaintSet.freeze(set);
+			assertFalse(set.summarized());
+			assertEquals(taint[7500], set.hasTaintBetween(7500, 7501));
+			assertTrue(set.summarized());
+			for (int k = 0; k < 2000; k++) {
+				int start = random.nextInt(taint.length), end = start + random.nextInt(taint.length - start + 1);
+				int count = 0;
+				for (int i = start; i < end; i++) {
+					count += taint[i] ? 1 : 0;
+				}
+				assertEquals(count > 0, set.hasTaintBetween(start, end));
+				assertEquals(count, set.countTainted(start, end));
+			}
+			assertTrue(set.summarized());
+			
+			// too small to be worth it
+			TaintSet small = TaintSet.freeze(TaintSet.generate(Arrays.copyOfRange(taint, 2500, 3500)));
+			small.countTainted(0, 1000);
+			assertFalse(small.summarized());
+			
+			// a view indexes only its own range of the bitmap
+			int summarized = 0;
+			for (int k = 0; k < 50; k++) {
+				int from = random.nextInt(taint.length - 2000), to = from + 1024 + random.nextInt(taint.length - from - 1024);
+				TaintSet view = TaintSet.freeze(TaintSet.generate(set, from, to));
+				for (int j = 0; j < 20; j++) {
+					int start = random.nextInt(to - from), end = start + random.nextInt(to - from - start + 1);
+					int count = 0;
+					for (int i = start; i < end; i++) {
+						count += taint[from + i] ? 1 : 0;
+					}
+					assertEquals(count > 0, view != null && view.hasTaintBetween(start, end));
+					assertEquals(count, view == null ? 0 : view.countTainted(start, end));
+				}
+				summarized += view != null && view.summarized() ? 1 : 0;
+			}
+			assertTrue(summarized > 0);
+		} finally {
+			TaintSet.setSummarySize(size);
+		}
+	}
+	
+	public void testSummaryChunked() {
+		// a large document at the default settings: its bitmap is chunked, and the chunks are shorter than the summary size
+		Random random = new Random(24);
+		boolean[] taint = new boolean[200000];
+		for (int i = 0; i < taint.length; i++) {
+			taint[i] = i / 5000 % 4 == 1 && random.nextBoolean();
+		}
+		
+		TaintSet set = TaintSet.freeze(TaintSet.generate(taint));
+		assertTrue(set.chunked());
+		assertFalse(set.summarized());
+		for (int k = 0; k < 200; k++) {
+			int start = random.nextInt(taint.length), end = start + random.nextInt(taint.length - start + 1);
+			int count = 0;
+			for (int i = start; i < end; i++) {
+				count += taint[i] ? 1 : 0;
+			}
+			assertEquals(count > 0, set.hasTaintBetween(start, end));
+			assertEquals(count, set.countTainted(start, end));
+		}
+		assertTrue(set.summarized());
+	}
+	
+	public void testCounts() {
+		assertEquals(0, TaintSet.taintedCount(null, 10));
+		assertEquals(0, TaintSet.runCount(null, 10));
+		assertEquals(7, TaintSet.generate(3, 10).taintedCount(20));
+		assertEquals(5, TaintSet.generate(3, 10).taintedCount(8));
+		assertEquals(1, TaintSet.generate(3, 10).runCount(20));
+		assertEquals(0, TaintSet.generate(3, 10).runCount(3));
+		assertEquals(12, TaintSet.allTainted.taintedCount(12));
+		assertEquals(1, TaintSet.allTainted.runCount(12));
+		assertEquals(3, TaintSet.intervalTaintedCount(TaintSet.packInterval(TaintSet.generate(3, 10)), 6));
+		
+		// runs crossing words, and touching at a word boundary
+		boolean[] taint = new boolean[300];
+		Arrays.fill(taint, 60, 70, true);
+		Arrays.fill(taint, 100, 128, true);
+		Arrays.fill(taint, 128, 192, true);
+		for (int i = 200; i < 300; i += 2) {
+			taint[i] = true;
+		}
+		TaintSet set = TaintSet.generate(taint);
+		assertEquals(10 + 92 + 50, set.taintedCount(300));
+		assertEquals(2 + 50, set.runCount(300));
+		assertEquals(10 + 92 + 1, set.taintedCount(201));
+		assertEquals(3, set.runCount(201));
+		assertEquals(1, set.runCount(65));
+		
+		// run lists
+		TaintSet list = TaintSet.generate(TaintSet.generate(0, 5), 10, TaintSet.generate(2, 4), 10);
+		assertEquals(7, list.taintedCount(20));
+		assertEquals(2, list.runCount(20));
+		assertEquals(1, list.runCount(12));
+	}
+	
+	public void testWordKernels() {
+		Random random = new Random(25);
+		
+		// concatenations spanning many words, at every alignment of the second set
+		for (int len1 = 1000; len1 < 1000 + 64; len1 += 7) {
+			boolean[] taint1 = new boolean[len1], taint2 = new boolean[3000];
+			for (int i = 0; i < taint1.length; i++) {
+				taint1[i] = random.nextBoolean();
+			}
+			for (int i = 0; i < taint2.length; i++) {
+				taint2[i] = i < 1000 ? random.nextBoolean() : i >= 2000;
+			}
+			boolean[] expected = Arrays.copyOf(taint1, len1 + taint2.length);
+			System.arraycopy(taint2, 0, expected, len1, taint2.length);
+			
+			TaintSet set = TaintSet.generate(TaintSet.generate(taint1), len1, TaintSet.generate(taint2), taint2.length);
+			assertTrue(Arrays.equals(expected, set.getTaintArray(expected.length)));
+			assertFalse(set.hasTaintBetween(len1 + 1000, len1 + 2000));
+			assertTrue(set.hasTaintBetween(len1 + 1000, len1 + 2001));
+		}
+	}
+	
+	public void testRopeUnion() {
+		// StringBuilder.insert(253, s1 + s2) into a 380-char builder: s1 a bitmap, s2 a complement list, s1 + s2 a rope
+		boolean[] taint1 = new boolean[2500], taint2 = new boolean[2500], taint3 = new boolean[380];
+		for (int i = 0; i < 2500; i++) {
+			taint1[i] = i % 3 == 0;
+			taint2[i] = i % 500 != 100;
+		}
+		for (int i = 0; i < 380; i += 2) {
+			taint3[i] = true;
+		}
+		TaintSet s2 = TaintSet.generate(taint2);
+		assertTrue(s2.complement());
+		TaintSet rope = TaintSet.generate(TaintSet.generate(taint1), 2500, s2, 2500);
+		assertTrue(rope.rope());
+		
+		boolean[] expected = new boolean[5380];
+		System.arraycopy(taint3, 0, expected, 0, 253);
+		System.arraycopy(taint1, 0, expected, 253, 2500);
+		System.arraycopy(taint2, 0, expected, 2753, 2500);
+		System.arraycopy(taint3, 253, expected, 5253, 127);
+		
+		TaintSet set = TaintSet.append(null, 0, TaintSet.generate(taint3), 380, 380);
+		set = TaintSet.move(set, 5000, 253);
+		set = TaintSet.union(set, 253, rope, 5000);
+		assertTrue(Arrays.equals(expected, set.getTaintArray(5380)));
+		
+		set = TaintSet.union(TaintSet.generate(0, 1), 0, rope, 5000);
+		assertEquals(834 + 2495, set.taintedCount(5000)); // char 0 is in both
+		assertTrue(set.isTaintedAt(0) && set.isTaintedAt(2503) && !set.isTaintedAt(2600));
+	}
+	
 	public void testMisc() {
 		assertTrue(t7.singleInterval());
 	}
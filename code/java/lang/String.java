@@ -20,6 +20,7 @@ import java.nio.charset.Charset;
 import java.util.Arrays;
 
 import javax.security.TaintSet;
+import javax.security.TaintTable;
 
 /**
  * Strings are objects which represent immutable arrays of characters.
@@ -72,6 +73,9 @@ public final class String implements Serializable, Comparable<String>,
 	private final int count;
 	private int hashCode;
 
+	// The taint, or null if none; left null when TaintTable.enabled, which keeps all taint in the side table: see taint().
+	// A single interval is one of TaintSet's shared intervals when one fits (see TaintSet.unpackInterval()), so the commonest taints
+	// cost a string no more than this reference. Substrings and concatenations of it are worked out packed: see interval()
 	TaintSet taintvalues = null;
 
 	static {
@@ -97,7 +101,7 @@ public final class String implements Serializable, Comparable<String>,
 		value[s.count] = c;
 		
 		// JY:
-		taintvalues = s.taintvalues; /*
+		setTaint(s.taint()); /*
 		if (s.taintvalues == null)
 			taintvalues = null;
 		else {
@@ -373,7 +377,7 @@ public final class String implements Serializable, Comparable<String>,
 			value = new char[length];
 			count = length;
 			
-			taintvalues = set;//new boolean[count];
+			setTaint(set);//new boolean[count];
 
 			try {
 				System.arraycopy(data, start, value, 0, count);
@@ -407,9 +411,18 @@ public final class String implements Serializable, Comparable<String>,
 		offset = start;
 		count = length;
 
-		taintvalues = taint;
+		setTaint(taint);
 	}
 
+	// interval is a packed interval, or 0, as from TaintSet.substringInterval()
+	private String(int start, int length, char[] data, long interval) {
+		value = data;
+		offset = start;
+		count = length;
+		
+		setInterval(interval);
+	}
+	
 	/**
 	 * Creates a string that is a copy of another string
 	 * 
@@ -421,7 +434,7 @@ public final class String implements Serializable, Comparable<String>,
 		value = string.value;
 		count = string.count;
 
-		taintvalues = string.taintvalues;
+		setTaint(string.taint());
 	}
 
 	/**
@@ -436,7 +449,7 @@ public final class String implements Serializable, Comparable<String>,
 			value = stringbuffer.shareValue();
 			count = stringbuffer.length();
 			// JY:
-			taintvalues = stringbuffer.shareTaintSet();
+			setTaint(stringbuffer.shareTaintSet());
 		}
 	}
 
@@ -454,10 +467,12 @@ public final class String implements Serializable, Comparable<String>,
 		System.arraycopy(s1.value, s1.offset, value, 0, s1.count);
 		System.arraycopy(s2.value, s2.offset, value, s1.count, s2.count);
 
-		if (s1.taintvalues == null && s2.taintvalues == null)
-			taintvalues = null;
+		long interval = TaintSet.concatInterval(s1.interval(), s1.count, s2.interval(), s2.count);
+		
+		if (interval != -1)
+			setInterval(interval);
 		else {
-			taintvalues = TaintSet.generate(s1.taintvalues, s1.count, s2.taintvalues, s2.count);
+			setTaint(TaintSet.generate(s1.taint(), s1.count, s2.taint(), s2.count));
 		}
 	}
 	
@@ -482,10 +497,10 @@ public final class String implements Serializable, Comparable<String>,
 		System.arraycopy(s3.value, s3.offset, value, s1.count + s2.count,
 				s3.count);
 		/*
-		if (s1.taintvalues == null && s2.taintvalues == null && s3.taintvalues == null)
-			taintvalues = null;
+		if (s1.taint() == null && s2.taint() == null && s3.taint() == null)
+			setTaint(null);
 		else {
-			taintvalues = TaintSet.generate(s1.taintvalues, s1.count, TaintSet.generate(s2.taintvalues, s2.count, s3.taintvalues, s3.count));
+			setTaint(TaintSet.generate(s1.taint(), s1.count, TaintSet.generate(s2.taint(), s2.count, s3.taint(), s3.count)));
 		}*/
 	}
 
@@ -525,7 +540,7 @@ public final class String implements Serializable, Comparable<String>,
 		System.arraycopy(s1.value, s1.offset, value, 0, s1.count);
 		count = len;
 
-		taintvalues = s1.taintvalues;
+		setTaint(s1.taint());
 	}
 
 	/**
@@ -627,7 +642,13 @@ public final class String implements Serializable, Comparable<String>,
 			System.arraycopy(value, offset, buffer, 0, count);
 			System.arraycopy(string.value, string.offset, buffer, count, string.count);
 
-			return new String(0, buffer.length, buffer, TaintSet.generate(taintvalues, count, string.taintvalues, string.count));
+			long interval = TaintSet.concatInterval(interval(), count, string.interval(), string.count);
+			
+			if (interval != -1) {
+				return new String(0, buffer.length, buffer, interval);
+			}
+			
+			return new String(0, buffer.length, buffer, TaintSet.generate(taint(), count, string.taint(), string.count));
 		}
 		return this;
 	}
@@ -1262,7 +1283,7 @@ public final class String implements Serializable, Comparable<String>,
 			buffer[index++] = newChar;
 		} while ((index = indexOf(oldChar, index)) != -1);
 		// return new String(0, count, buffer);
-		return new String(0, count, buffer, taintvalues);
+		return new String(0, count, buffer, taint());
 	}
 
 	/**
@@ -1314,8 +1335,14 @@ public final class String implements Serializable, Comparable<String>,
 		if (start == 0)
 			return this;
 		if (0 <= start && start <= count) {
+			long interval = TaintSet.substringInterval(interval(), start, count);
+			
+			if (interval != -1) {
+				return new String(offset + start, count - start, value, interval);
+			}
+			
 			return new String(offset + start, count - start, value,
-					TaintSet.generate(taintvalues, start, count));
+					TaintSet.generate(taint(), start, count));
 		}
 		throw new StringIndexOutOfBoundsException(start);
 	}
@@ -1339,8 +1366,14 @@ public final class String implements Serializable, Comparable<String>,
 		// NOTE last character not copied!
 		// Fast range check.
 		if (0 <= start && start <= end && end <= count) {
+			long interval = TaintSet.substringInterval(interval(), start, end);
+			
+			if (interval != -1) {
+				return new String(offset + start, end - start, value, interval);
+			}
+			
 			return new String(offset + start, end - start, value,
-					TaintSet.generate(taintvalues, start, end));
+					TaintSet.generate(taint(), start, end));
 		}
 		throw new StringIndexOutOfBoundsException();
 	}
@@ -1509,7 +1542,7 @@ public final class String implements Serializable, Comparable<String>,
 		// check locale for null
 		String language = locale.getLanguage();
 
-		boolean[] taintarr = taintvalues.getTaintArray(count);
+		boolean[] taintarr = taint().getTaintArray(count);
 		int o = 0;
 		while (o < count) {
 			int codePoint = value[offset + o];
@@ -1787,7 +1820,7 @@ public final class String implements Serializable, Comparable<String>,
 	}
 
 	public String toUpperCaseTaint(Locale locale) {
-		boolean[] taintarr = taintvalues.getTaintArray(count);
+		boolean[] taintarr = taint().getTaintArray(count);
 		String language = locale.getLanguage();
 		boolean turkishAzeri = "tr".equals(language) || "az".equals(language); //$NON-NLS-1$ //$NON-NLS-2$
 		boolean lithuanian = "lt".equals(language); //$NON-NLS-1$
@@ -1937,7 +1970,13 @@ public final class String implements Serializable, Comparable<String>,
 			end--;
 		if (start == offset && end == last)
 			return this;
-		return new String(start, end - start + 1, value, TaintSet.generate(taintvalues, start - offset, end - offset));
+		long interval = TaintSet.substringInterval(interval(), start - offset, end - offset);
+		
+		if (interval != -1) {
+			return new String(start, end - start + 1, value, interval);
+		}
+		
+		return new String(start, end - start + 1, value, TaintSet.generate(taint(), start - offset, end - offset));
 	}
 
 	/**
@@ -2320,7 +2359,7 @@ public final class String implements Serializable, Comparable<String>,
 		offset = 0;
 		value = sBuilder.shareValue();
 		count = sBuilder.length();
-		taintvalues = sBuilder.shareTaintSet();
+		setTaint(sBuilder.shareTaintSet());
 	}
 
 	/**
@@ -2527,9 +2566,11 @@ public final class String implements Serializable, Comparable<String>,
 			StringBuilder result = new StringBuilder((count + 1)
 					* sequence2.length());
 			result.append(sequence2);
+			TaintSet taint = taint();
+			boolean tainted = TaintSet.tainted(taint);
 			for (int i = 0; i < count; i++) {
 				// result.append(charAt(i));
-				result.append(charAt(i), taintvalues.isTaintedAt(i));
+				result.append(charAt(i), tainted && taint.isTaintedAt(i));
 				result.append(sequence2);
 			}
 			return result.toString();
@@ -2670,7 +2711,7 @@ public final class String implements Serializable, Comparable<String>,
 			value = StringCoding.decode(aCharset, data, start, length);
 			count = value.length;
 
-			taintvalues = null;
+			setTaint(null);
 
 		} else
 			throw new StringIndexOutOfBoundsException();
@@ -2694,15 +2735,14 @@ public final class String implements Serializable, Comparable<String>,
 		// NOTE last character not copied!
 		// Fast range check.
 		if (0 <= start && start <= end && end <= count) {
-			System.arraycopy(taintvalues.getTaintArray(count), start + offset, buffer, index, end
-					- start);
+			taint().getTaintArray(start, end, buffer, index);
 		} else
 			throw new StringIndexOutOfBoundsException();
 
 	}
 
 	public boolean[] getTaintarr() {
-		return hasTaint() ? taintvalues.getTaintArray(count) : null;
+		return hasTaint() ? taint().getTaintArray(count) : null;
 	}
 
 	public boolean hasTaint() {
@@ -2721,7 +2761,7 @@ public final class String implements Serializable, Comparable<String>,
 
 	// For unit testing only
 	public void setTaintarr() {
-		taintvalues = TaintSet.generate(generateTaintarr(count));
+		setTaint(TaintSet.generate(generateTaintarr(count)));
 	}
 	
 	public String(String string, int start, int length) {
@@ -2730,7 +2770,7 @@ public final class String implements Serializable, Comparable<String>,
 			value = string.value;
 			count = string.count;
 
-			taintvalues = TaintSet.guardedGenerate(start, length + start);
+			setTaint(TaintSet.guardedGenerate(start, length + start));
 		} else
 			throw new StringIndexOutOfBoundsException();
 	}
@@ -2742,10 +2782,10 @@ public final class String implements Serializable, Comparable<String>,
 		count = string.count;
 
 		if(tain) {
-			taintvalues = TaintSet.allTainted;// notAllTainted: TaintSet.generate(count);
+			setTaint(TaintSet.allTainted);// notAllTainted: TaintSet.generate(count);
 		}
 		else {
-			taintvalues = null;
+			setTaint(null);
 		}
 	}
 
@@ -2755,20 +2795,67 @@ public final class String implements Serializable, Comparable<String>,
 		value = string.value;
 		count = string.count;
 		
-		taintvalues = TaintSet.generate(tain);
+		setTaint(TaintSet.generate(tain));
+	}
+	
+	/**
+	 * @return the number of tainted chars in this string
+	 */
+	public int taintedCount() {
+		return TaintSet.taintedCount(taint(), count);
+	}
+	
+	/**
+	 * @return the number of tainted runs in this string, each a maximal stretch of tainted chars
+	 */
+	public int runCount() {
+		return TaintSet.runCount(taint(), count);
 	}
 	
 	public boolean hasTaint(int start) {
 		return hasTaint(start, count);
 	}
 	
+	// A deferred taint isn't null but may compute to none: TaintSet.tainted() tells, so nothing here takes non-null for tainted
 	public boolean hasTaint(int start, int end) {
-		return taintvalues != null && taintvalues.hasTaintBetween(start, end);
+		TaintSet taint = taint();
+		return TaintSet.tainted(taint) && taint.hasTaintBetween(start, end);
+	}
+	
+	/**
+	 * The taint of this string: its field, or, when TaintTable.enabled, its entry in the side table, which then holds all of it.
+	 * Only the methods from here to setTaint() read or write the field, so a build without it only has to change those
+	 */
+	TaintSet taint() {
+		return TaintTable.enabled ? TaintTable.get(this) : taintvalues;
+	}
+	
+	// The taint of this string packed, or 0 if none; -1 if it can't be packed. Packing only reads the set, so nothing is made
+	private long interval() {
+		TaintSet taint = taint();
+		long interval = TaintSet.packInterval(taint);
+		return interval != 0 || taint == null ? interval : -1;
+	}
+	
+	// Gives this string the taint packed in 'interval', or none if it's 0: a shared interval when there is one
+	private void setInterval(long interval) {
+		setTaint(TaintSet.unpackInterval(interval));
+	}
+	
+	// In the side table, no taint removes the string's entry, if it has one: put() finds out from the filter, so an untainted string costs its identity hash
+	private void setTaint(TaintSet taint) {
+		if (TaintTable.enabled) {
+			TaintTable.put(this, taint);
+		} else {
+			taintvalues = taint;
+		}
 	}
 	
 	public void printTaintBits() {
-		if (taintvalues != null) {
-			taintvalues.printTaintBits();
+		TaintSet taint = taint();
+		
+		if (TaintSet.tainted(taint)) {
+			taint.printTaintBits();
 		} else {
 			System.out.println("no taint");
 		}
@@ -82,14 +82,14 @@ public final class StringBuffer implements Serializable, CharSequence,
 		count = string.length();
 		value = new char[count + INITIAL_SIZE];
 		string.getChars(0, count, value, 0);
-		taintvalues = string.taintvalues; // TODO: make a clone of taintvalues
+		taintvalues = TaintSet.append(null, 0, string.taint(), count, value.length);
 	}
 
 	public StringBuffer(StringBuffer strbuf, boolean taint) {
 		count = strbuf.count;
 		value = new char[strbuf.value.length];
 		System.arraycopy(strbuf.value, 0, value, 0, count);
-		taintvalues = taint ? TaintSet.allTainted : null;
+		taintvalues = taint ? TaintSet.generate(count) : null;
 
 	}
 
@@ -238,7 +238,7 @@ public final class StringBuffer implements Serializable, CharSequence,
 			ensureCapacityImpl(newSize);
 		}
 		string.getChars(0, adding, value, count);
-		taintvalues = TaintSet.append(taintvalues, count, string.taintvalues, string.length(), capacity());
+		taintvalues = TaintSet.append(taintvalues, count, string.taint(), string.length(), capacity());
 		count = newSize;
 		return this;
 	}
@@ -515,7 +515,7 @@ public final class StringBuffer implements Serializable, CharSequence,
 		if (0 <= index && index <= count) {
 			move(1, index);
 			value[index] = ch;
-			TaintSet.set(taintvalues, index, false);
+			taintvalues = TaintSet.set(taintvalues, index, false);
 			count++;
 			return this;
 		} else
@@ -632,7 +632,7 @@ public final class StringBuffer implements Serializable, CharSequence,
 			int min = string.length();
 			move(min, index);
 			string.getChars(0, min, value, index);
-			taintvalues = TaintSet.union(taintvalues, index, string.taintvalues);
+			taintvalues = TaintSet.union(taintvalues, index, string.taint(), min);
 			count += min;
 			return this;
 		} else
@@ -715,6 +715,7 @@ public final class StringBuffer implements Serializable, CharSequence,
 			if (end > start) {
 				int stringLength = string.length();
 				int diff = end - start - stringLength;
+				TaintSet taint = taintvalues; // move() shifts the taint too, but TaintSet.replace() does its own shifting
 				if (diff > 0) { // replacing with fewer characters
 					if (!shared) {
 						System.arraycopy(value, end, value, start
@@ -738,7 +739,7 @@ public final class StringBuffer implements Serializable, CharSequence,
 				}
 				string.getChars(0, stringLength, value, start);
 
-				taintvalues = TaintSet.replace(taintvalues, start, end, stringLength, string.taintvalues);
+				taintvalues = TaintSet.replace(taint, start, end, stringLength, string.taint());
 				
 				count -= diff;
 				return this;
@@ -952,7 +953,7 @@ public final class StringBuffer implements Serializable, CharSequence,
 	public synchronized String substring(int start) {
 		if (0 <= start && start <= count) {
 			// return new String(value, start, count - start);
-			return new String(value, start, count - start, TaintSet.makeCopy(TaintSet.generate(taintvalues, start, count)));
+			return new String(value, start, count - start, TaintSet.generate(taintvalues, start, count));
 		}
 		throw new StringIndexOutOfBoundsException(start);
 	}
@@ -973,7 +974,7 @@ public final class StringBuffer implements Serializable, CharSequence,
 	public synchronized String substring(int start, int end) {
 		if (0 <= start && start <= end && end <= count) {
 			// return new String(value, start, end - start);
-			return new String(value, start, end - start, TaintSet.makeCopy(TaintSet.generate(taintvalues, start, end)));
+			return new String(value, start, end - start, TaintSet.generate(taintvalues, start, end));
 		}
 		throw new StringIndexOutOfBoundsException();
 	}
@@ -988,11 +989,11 @@ public final class StringBuffer implements Serializable, CharSequence,
 		if (wasted >= 768
 				|| (wasted >= INITIAL_SIZE && wasted >= (value.length >> 1))) {
 			// return new String(value, 0, count);
-			return new String(value, 0, count, taintvalues);
+			return new String(value, 0, count, TaintSet.freeze(taintvalues));
 		}
 		shared = true;
 		// return new String (0, count, value);
-		return new String(0, count, value, taintvalues); // TODO: double check
+		return new String(0, count, value, TaintSet.freeze(taintvalues)); // TODO: double check
 	}
 
 	/*
@@ -1004,7 +1005,7 @@ public final class StringBuffer implements Serializable, CharSequence,
 	}
 
 	TaintSet shareTaintSet() {
-		return taintvalues;
+		return TaintSet.freeze(taintvalues);
 	}
 
 	private synchronized void writeObject(ObjectOutputStream stream)
@@ -1583,8 +1584,8 @@ public final class StringBuffer implements Serializable, CharSequence,
 				value[count] = (char) (0xd800 + (codePoint >> 10));
 				value[count + 1] = (char) (0xdc00 + (codePoint & 0x3ff));
 
-				TaintSet.set(taintvalues, count, false);
-				TaintSet.set(taintvalues, count + 1, false);
+				taintvalues = TaintSet.set(taintvalues, count, false);
+				taintvalues = TaintSet.set(taintvalues, count + 1, false);
 
 				count += 2;
 				return this;
@@ -1596,5 +1597,24 @@ public final class StringBuffer implements Serializable, CharSequence,
 	public void setTaintarr() {
 		taintvalues = TaintSet.generate(String.generateTaintarr(count));
 	}
+	
+	/**
+	 * Answers the number of tainted characters in this StringBuffer.
+	 * 
+	 * @return		the number of tainted characters
+	 */
+	public synchronized int taintedCount() {
+		return TaintSet.taintedCount(taintvalues, count);
+	}
+	
+	/**
+	 * Answers the number of tainted runs in this StringBuffer, each a maximal
+	 * stretch of tainted characters.
+	 * 
+	 * @return		the number of tainted runs
+	 */
+	public synchronized int runCount() {
+		return TaintSet.runCount(taintvalues, count);
+	}
 
 }
@@ -88,7 +88,7 @@ public final class StringBuilder implements Serializable, CharSequence,
 		count = string.length();
 		value = new char[count + INITIAL_SIZE];
 		string.getChars(0, count, value, 0);
-		taintvalues = string.taintvalues; // TODO: make a clone of taintvalues
+		taintvalues = TaintSet.append(null, 0, string.taint(), count, value.length);
 	}
 
 	/**
@@ -267,7 +267,7 @@ public final class StringBuilder implements Serializable, CharSequence,
 			ensureCapacityImpl(newSize);
 		}
 		string.getChars(0, adding, value, count);
-		taintvalues = TaintSet.append(taintvalues, count, string.taintvalues, string.length(), capacity());
+		taintvalues = TaintSet.append(taintvalues, count, string.taint(), string.length(), capacity());
 		count = newSize;
 		return this;
 	}
@@ -657,7 +657,7 @@ public final class StringBuilder implements Serializable, CharSequence,
 			int min = string.length();
 			move(min, index);
 			string.getChars(0, min, value, index);
-			taintvalues = TaintSet.union(taintvalues, index, string.taintvalues);
+			taintvalues = TaintSet.union(taintvalues, index, string.taint(), min);
 			count += min;
 			return this;
 		} else
@@ -740,6 +740,7 @@ public final class StringBuilder implements Serializable, CharSequence,
 			if (end > start) {
 				int stringLength = string.length();
 				int diff = end - start - stringLength;
+				TaintSet taint = taintvalues; // move() shifts the taint too, but TaintSet.replace() does its own shifting
 				if (diff > 0) { // replacing with fewer characters
 					if (!shared) {
 						System.arraycopy(value, end, value, start
@@ -763,7 +764,7 @@ public final class StringBuilder implements Serializable, CharSequence,
 				}
 				string.getChars(0, stringLength, value, start);
 
-				taintvalues = TaintSet.replace(taintvalues, start, end, stringLength, string.taintvalues);
+				taintvalues = TaintSet.replace(taint, start, end, stringLength, string.taint());
 				
 				count -= diff;
 				return this;
@@ -983,7 +984,7 @@ public final class StringBuilder implements Serializable, CharSequence,
 	public String substring(int start) {
 		if (0 <= start && start <= count) {
 			// return new String(value, start, count - start);
-			return new String(value, start, count - start, TaintSet.makeCopy(TaintSet.generate(taintvalues, start, count)));
+			return new String(value, start, count - start, TaintSet.generate(taintvalues, start, count));
 		}
 		throw new StringIndexOutOfBoundsException(start);
 	}
@@ -1004,7 +1005,7 @@ public final class StringBuilder implements Serializable, CharSequence,
 	public String substring(int start, int end) {
 		if (0 <= start && start <= end && end <= count) {
 			// return new String(value, start, end - start);
-			return new String(value, start, end - start, TaintSet.makeCopy(TaintSet.generate(taintvalues, start, end)));
+			return new String(value, start, end - start, TaintSet.generate(taintvalues, start, end));
 		}
 		throw new StringIndexOutOfBoundsException();
 	}
@@ -1019,11 +1020,11 @@ public final class StringBuilder implements Serializable, CharSequence,
 		if (wasted >= 768
 				|| (wasted >= INITIAL_SIZE && wasted >= (value.length >> 1))) {
 			// return new String(value, 0, count);
-			return new String(value, 0, count, taintvalues);
+			return new String(value, 0, count, TaintSet.freeze(taintvalues));
 		}
 		shared = true;
 		// return new String (0, count, value);
-		return new String(0, count, value, taintvalues);
+		return new String(0, count, value, TaintSet.freeze(taintvalues));
 	}
 
 	private void writeObject(ObjectOutputStream stream) throws IOException {
@@ -1224,7 +1225,7 @@ public final class StringBuilder implements Serializable, CharSequence,
 	}
 
 	TaintSet shareTaintSet() {
-		return taintvalues;
+		return TaintSet.freeze(taintvalues);
 	}
 
 	/**
@@ -1583,8 +1584,8 @@ public final class StringBuilder implements Serializable, CharSequence,
 				value[count] = (char) (0xd800 + (codePoint >> 10));
 				value[count + 1] = (char) (0xdc00 + (codePoint & 0x3ff));
 
-				TaintSet.set(taintvalues, count, false);
-				TaintSet.set(taintvalues, count + 1, false);
+				taintvalues = TaintSet.set(taintvalues, count, false);
+				taintvalues = TaintSet.set(taintvalues, count + 1, false);
 
 				count += 2;
 				return this;
@@ -1603,6 +1604,25 @@ public final class StringBuilder implements Serializable, CharSequence,
 	public void setTaintarr() {
 		taintvalues = TaintSet.generate(String.generateTaintarr(count));
 	}
+	
+	/**
+	 * Answers the number of tainted characters in this StringBuilder.
+	 * 
+	 * @return		the number of tainted characters
+	 */
+	public int taintedCount() {
+		return TaintSet.taintedCount(taintvalues, count);
+	}
+	
+	/**
+	 * Answers the number of tainted runs in this StringBuilder, each a maximal
+	 * stretch of tainted characters.
+	 * 
+	 * @return		the number of tainted runs
+	 */
+	public int runCount() {
+		return TaintSet.runCount(taintvalues, count);
+	}
 
 	/**
 	 * Adds the specified code point to the end of this StringBuffer.
@@ -1629,8 +1649,8 @@ public final class StringBuilder implements Serializable, CharSequence,
 					taintvalues = TaintSet.ensureCapacity(taintvalues, count + 2);
 				}
 				
-				TaintSet.set(taintvalues, count, tain);
-				TaintSet.set(taintvalues, count + 1, tain);
+				taintvalues = TaintSet.set(taintvalues, count, tain);
+				taintvalues = TaintSet.set(taintvalues, count + 1, tain);
 
 				count += 2;
 				return this;
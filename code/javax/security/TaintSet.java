@@ -1,567 +1,4252 @@
 package javax.security;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
 // taintbits is NEVER modified outside of generate(), realloc(), and set() (generate() + functions accessed in builder/buffer)
 // offset < 0 only if we don't modify contents of taintbits
 // make sure getFirstTaint() + length <= length of parent string
+// a frozen set (one a String can reach, or one sharing its bitmap) is never modified in place; builders copy it before they mutate
 public final class TaintSet {
 	// [offset, offset + length) bits of 'value' could be tainted
 	private int offset; // the position of the first possibly tainted char indexed from string's offset
 	private int length; // number of characters after "start" that could be tainted; must be positive
-	private int[] taintbits;
-	
-	/**
-	 * constants for the program. hopefully compiled in.
-	 * idioms frequently used in the program use the following values
-	 * Examples:
-	 * 	x >> cellbits == x / cellsize
-	 * 	x & cellmax == x % cellsize
-	 * 	1 << cellbits == cellsize
-	 */
-	
-	final static byte cellsize = 32;
-	final static byte cellbits = 5;
-	final static byte cellmax = cellsize - 1; // 31
+	private long[] taintbits;
+	private long inlinebits; // inline bitmap for sets spanning at most cellsize chars: bit (cellsize - 1 - i) is char offset + i; 0 unless inline
+	private int[] runs; // interval list: sorted [start, end) pairs relative to offset; runs[0] == 0 and runs[runs.length - 1] == length
+	private boolean frozen; // never modified in place: append(), union() and set() work on a copy instead
+	private Forms forms = none; // the rarer forms below, in a Forms of the set's own; the shared empty 'none' unless the set is in one of them
+	private volatile Deferred pending; // lazy: the substring or concatenation this set is the result of, carried out when the set is first read; null after that, or if never deferred
 	
-	public final static TaintSet allTainted = new TaintSet(0, Integer.MAX_VALUE, null);
-	
-	private TaintSet() {
-		// System.out.println("Constructing TaintSet");
-	}
-
 	/**
-	 * Initializes a taint set for a substring starting at offset with length maxlen
-	 * @param set TaintSet of the string that is being substringed
-	 * @param offset The index of the original string that the new string begins on
-	 * @param maxlen The length of the resultant substring
+	 * The forms of a set other than intervals and bitmaps, kept apart so that sets in those, most of them, stay small:
+	 * apart from its header, a TaintSet is just the fields above, with taintbits, runs, forms and pending compressed references
+	 * 
+	 * Sets in none of them share 'none', which is never modified: a set gets a Forms of its own from forms() before storing one.
+	 * A Forms belongs to a single set; copies of a set copy it (see copy())
 	 */
 	
-	public TaintSet(int offset, int length, int[] taintbits) {
-		this.offset = offset;
-		this.length = length;
-		this.taintbits = taintbits;
+	private final static class Forms implements Cloneable {
+		LongBuffer bitbuffer; // off-heap bitmap: the bits, in a direct buffer; taintbits is then the empty placeholder 'offheap'. Only frozen sets are moved off the heap
+		int[] holes; // complement list: everything in [offset, offset + length) is tainted except these sorted [start, end) pairs, which lie strictly inside it
+		int[] positions; // position list: the sorted tainted chars relative to offset; positions[0] == 0 and positions[positions.length - 1] == length - 1
+		int[] starts; // chunked: sorted start of each chunk relative to offset; never modified in place
+		TaintSet[] chunks; // chunked: the taint of each chunk relative to its start; shared between sets, so never modified in place unless ownsTail
+		boolean ownsTail; // chunked: no other set references chunks[chunks.length - 1], so appends may modify it in place. Never true of a frozen set, whose Forms is never written
+		int depth; // rope: a chunked set of two chunks, the two sides of a concatenation, that may be ropes themselves; 1 + the depth of the deeper one. 0 unless a rope
+		long[] blockbits; // coarse: bit i (most significant first, as in taintbits) is set if any char of block i, [offset + i * blocksize, offset + (i + 1) * blocksize), is tainted; offset is a multiple of blocksize
+		int blocksize; // coarse: chars per bit of blockbits
+		int[] labels; // labelled: the palette, the distinct labels of the set's taint, sorted; never modified in place
+		TaintSet[] layers; // labelled: layers[i] is the taint labelled labels[i], an unlabelled frozen set relative to the string like this one; a char may be in several
+		boolean[] flags; // flag array (the baseline representation, see FLAGS): flags[i] is char i of the string; offset is 0 and length flags.length. Never modified in place, so always frozen
+		Form form; // the operations of the form above that the set is in (see Form); null if it's in none of them, as 'none' is
+		Summary summary; // summarized: the index of a large frozen bitmap, 'unbuilt' from when it's frozen until the first range query builds it (see summary()); null for any other set
+		
+		// A Forms for a copy of the set: what is never modified in place is shared, blockbits and the array of chunks are copied.
+		// The copy shares the tail chunk too, so doesn't own it; this Forms is left as it is, as its set may be frozen and read by other threads
+		Forms copy() {
+			try {
+				Forms copy = (Forms) clone();
+				copy.blockbits = blockbits == null ? null : blockbits.clone();
+				copy.chunks = chunks == null ? null : chunks.clone();
+				copy.ownsTail = false;
+				copy.summary = null; // of the set's own bitmap, which the copy may not share
+				return copy;
+			} catch (CloneNotSupportedException e) {
+				throw new InternalError();
+			}
+		}
 	}
 	
-	/*************************
-	 * Static Factory Methods
-	 *************************/
+	private final static Forms none = new Forms();
 	
-	/**
-	 * Combines two strings whose TaintSet objects are b1 and b2 and string lengths are len1 and len2
-	 * destructive is true iff you want to only modify b1 (as in Buffer/Builder.append)
-	 * capacity is used only when it's destructive
-	 */
-
-	private static TaintSet generate(TaintSet b1, int len1, final TaintSet b2, int len2, int capacity) {
-		if (b1 != null) {
-			// b1 tainted
-			if (b2 != null) {
-				// both tainted
-				
-				// both fully tainted, then return allTainted
-				if (b1.length >= len1 && b1.offset == 0 && b1.singleInterval()) {
-					if (b2.length >= len2 && b2.offset == 0 && b2.singleInterval()) {
-						return allTainted;
-					}
-					
-					// if b1 is allTainted then make a new set--don't modify b1
-					capacity = 0;
-				}
-				
-				// at least one has an untainted portion
-				TaintSet set;
-				int b1start = b1.getFirstTaint();
-				
-				if (capacity > 0) {
-					set = b1;
-				} else {
-					set = new TaintSet();
-					set.offset = b1start;
-				}
-				
-				int b1len = len1 - b1start; // length from the first taint to the end of string 1
-				int prevb1len = Math.min(b1.length, b1len);
-				set.length = b1len + Math.min(b2.getLastTaint(), len2);
-				
-				// must merge/create taintbits (not a single interval)
-				if (b1len > prevb1len || b2.offset > 0 || b1.taintbits != null || b2.taintbits != null) {
-					if (capacity == 0) {
-						set.taintbits = new int[numCells(set.length)];
-						set.fill(0, b1, prevb1len);
-					} else if(b1.taintbits == null) {
-						// b1 is a single interval, need to convert to bitmap
-						set.taintbits = new int[numCells(capacity - set.offset)];
-						set.setTainted(b1start, b1start + prevb1len);
-					}
-					
-					set.fill(len1, b2, len2 - b2.getFirstTaint()); // set = set union (b2 + len1)
-				}
-				
-				return set;
-			} else {
-				// b1 tainted; b2 untainted
-				
-				// don't want set from b1 to spill over to the new set
-				if (b1.getLastTaint() > len1) {
-					return new TaintSet(b1.offset, len1 - b1.getFirstTaint(), b1.taintbits);
-				} else {
-					return b1;
-				}
-			}
-		} else if (b2 != null) {
-			// b1 untainted; b2 tainted
-			return new TaintSet(len1 + b2.offset, b2.getLength(len2), b2.taintbits);
-		} else {
-			// both untainted
-			return null;
+	// This set's own Forms, to store a form in
+	private Forms forms() {
+		if (forms == none) {
+			forms = new Forms();
 		}
+		
+		return forms;
+	}
+	
+	// This set's own Forms, to store 'form' in: the fields of that form are set next
+	private Forms forms(Form form) {
+		forms().form = form;
+		return forms;
 	}
 	
 	/**
-	 * Produce the resultant of concatenating strings S1 and S2
-	 * whose TaintSet objects are b1 and b2
-	 * 
-	 * It creates a single interval (singleInterval()) if possible.
-	 * Otherwise it creates a new bitset and populates it using b1 and b2
-	 * 
-	 * Returns null if both sets are empty
+	 * The operations that read a set, for each form kept in Forms, so they're found through Forms.form rather than a test of each field in turn.
+	 * The forms held in the set's own fields (single interval, interval list, inline bitmap, and bitmap, on or off the heap) are read by TaintSet itself.
 	 * 
-	 * @param b1 TaintSet object from the first string
-	 * @param len1 Length of the first string
-	 * @param b2 TaintSet object from the second string
-	 * @return resultant TaintSet, null if no taint
+	 * Positions are relative to the set's offset, and ranges lie within its taint, unless said otherwise
 	 */
 	
-	public static TaintSet generate(final TaintSet b1, int len1, final TaintSet b2, int len2) {
-		return generate(b1, len1, b2, len2, 0);
+	private static abstract class Form {
+		// contains()
+		abstract boolean contains(TaintSet set, int position);
+		
+		// emptySet() of [start, end)
+		abstract boolean emptySet(TaintSet set, int start, int end);
+		
+		// word() starting at char 'start' of the parent string, of its chars [from, to), which lie in the taint and in [start, start + cellsize)
+		abstract long word(TaintSet set, int start, int from, int to);
+		
+		// countTainted() of chars [from, to) of the parent string, which lie in the taint: the bits of each word, unless the form can do better
+		int countTainted(TaintSet set, int from, int to) {
+			return set.countWords(from, to);
+		}
+		
+		// getTaintArray() of chars [from, to) of the parent string, which lie in the taint, into taintarr[at + from, at + to): a word at a time,
+		// unless the form can do better
+		void getTaintArray(TaintSet set, int from, int to, boolean[] taintarr, int at) {
+			set.expandWords(from, to, taintarr, at);
+		}
+		
+		// taintEnd() of the set moved right by 'shift', which is unbounded where it lies: getLastTaint(), 'last', unless the form knows better
+		int taintEnd(TaintSet set, int shift, int last) {
+			return last;
+		}
+		
+		// nextTainted() from 'position', which lies in the taint, and before 'last', getLastTaint(): a scan a word at a time,
+		// unless the form can do better
+		int nextTainted(TaintSet set, int position, int last) {
+			return set.scanTainted(position, last);
+		}
+		
+		// nextUntainted() from 'position', which lies in the taint, and before 'last', getLastTaint(), found as nextTainted() is
+		int nextUntainted(TaintSet set, int position, int last) {
+			return set.scanUntainted(position, last);
+		}
+		
+		// whether the form is a list, of runs or chars, which runsOnly() treats as it does an interval list
+		boolean list() {
+			return false;
+		}
+		
+		// printTaintBits() of what the form holds
+		abstract void print(TaintSet set);
 	}
 	
-	public static TaintSet generate(final TaintSet b1, int len1, final TaintSet b2) {
-		return generate(b1, len1, b2, Integer.MAX_VALUE, 0);
+	// Complement list: Forms.holes
+	private static final class Complement extends Form {
+		boolean contains(TaintSet set, int position) {
+			int[] holes = set.forms.holes;
+			int i = findRun(holes, position);
+			return i >= holes.length || holes[i] > position;
+		}
+		
+		boolean emptySet(TaintSet set, int start, int end) {
+			// empty only within a single hole
+			int[] holes = set.forms.holes;
+			int i = findRun(holes, start);
+			return start >= end || (i < holes.length && holes[i] <= start && holes[i + 1] >= end);
+		}
+		
+		long word(TaintSet set, int start, int from, int to) {
+			int[] holes = set.forms.holes;
+			long word = head(to - from) >>> (from - start);
+			
+			for (int i = findRun(holes, from - set.offset); i < holes.length && set.offset + holes[i] < to; i += 2) {
+				int holestart = Math.max(set.offset + holes[i], from);
+				word &= ~(head(Math.min(set.offset + holes[i + 1], to) - holestart) >>> (holestart - start));
+			}
+			
+			return word;
+		}
+		
+		int countTainted(TaintSet set, int from, int to) {
+			int[] holes = set.forms.holes;
+			int count = to - from;
+			
+			for (int i = findRun(holes, from - set.offset); i < holes.length && set.offset + holes[i] < to; i += 2) {
+				count -= Math.min(set.offset + holes[i + 1], to) - Math.max(set.offset + holes[i], from);
+			}
+			
+			return count;
+		}
+		
+		void getTaintArray(TaintSet set, int from, int to, boolean[] taintarr, int at) {
+			int[] holes = set.forms.holes;
+			Arrays.fill(taintarr, at + from, at + to, true);
+			
+			for (int i = findRun(holes, from - set.offset); i < holes.length && set.offset + holes[i] < to; i += 2) {
+				Arrays.fill(taintarr, at + Math.max(set.offset + holes[i], from), at + Math.min(set.offset + holes[i + 1], to), false);
+			}
+		}
+		
+		int nextTainted(TaintSet set, int position, int last) {
+			int[] holes = set.forms.holes;
+			int i = findRun(holes, position - set.offset);
+			
+			if (i < holes.length && set.offset + holes[i] <= position) {
+				position = set.offset + holes[i + 1];
+			}
+			
+			return position < last ? position : -1;
+		}
+		
+		int nextUntainted(TaintSet set, int position, int last) {
+			int[] holes = set.forms.holes;
+			int i = findRun(holes, position - set.offset);
+			return i < holes.length ? Math.max(set.offset + holes[i], position) : last;
+		}
+		
+		boolean list() {
+			return true;
+		}
+		
+		void print(TaintSet set) {
+			for(int i = 0; i < set.forms.holes.length; i += 2) {
+				System.out.printf("\tclean [%d, %d)\n", set.forms.holes[i], set.forms.holes[i + 1]);
+			}
+		}
 	}
 	
-	/**
-	 * Used to substring a string whose TaintSet is 'set'. The substring is [beginIndex, endIndex)
-	 * @param set
-	 * @param beginIndex
-	 * @param endIndex
-	 * @return
-	 */
-	public static TaintSet generate(TaintSet set, int beginIndex, int endIndex) {
-		// start off with two special, extremely-common cases
-		if (set == null || set == allTainted) {
-			return set;
-		} else {
-			int length = set.overlapLength(beginIndex, endIndex);
+	// Position list: Forms.positions
+	private static final class Positions extends Form {
+		boolean contains(TaintSet set, int position) {
+			int[] positions = set.forms.positions;
+			int i = findPosition(positions, position);
+			return i < positions.length && positions[i] == position;
+		}
+		
+		boolean emptySet(TaintSet set, int start, int end) {
+			int[] positions = set.forms.positions;
+			int i = findPosition(positions, start);
+			return i >= positions.length || positions[i] >= end;
+		}
+		
+		long word(TaintSet set, int start, int from, int to) {
+			int[] positions = set.forms.positions;
+			long word = 0;
 			
-			// If there's no overlap then clearly there's no taint
-			if (length <= 0) {
-				return null;
+			for (int i = findPosition(positions, from - set.offset); i < positions.length && set.offset + positions[i] < to; i++) {
+				word |= 0x8000000000000000L >>> (set.offset + positions[i] - start);
 			}
 			
-			int offset = set.offset - beginIndex;
+			return word;
+		}
+		
+		int countTainted(TaintSet set, int from, int to) {
+			return findPosition(set.forms.positions, to - set.offset) - findPosition(set.forms.positions, from - set.offset);
+		}
+		
+		void getTaintArray(TaintSet set, int from, int to, boolean[] taintarr, int at) {
+			int[] positions = set.forms.positions;
+			
+			for (int i = findPosition(positions, from - set.offset); i < positions.length && set.offset + positions[i] < to; i++) {
+				taintarr[at + set.offset + positions[i]] = true;
+			}
+		}
+		
+		int nextTainted(TaintSet set, int position, int last) {
+			int[] positions = set.forms.positions;
+			int i = findPosition(positions, position - set.offset);
+			return i < positions.length ? set.offset + positions[i] : -1;
+		}
+		
+		int nextUntainted(TaintSet set, int position, int last) {
+			int[] positions = set.forms.positions;
 			
-			if (offset <= 0 && set.singleInterval()) {
-				if (endIndex <= set.getLastTaint()) {
-					return allTainted;
-				}
+			for (int i = findPosition(positions, position - set.offset); i < positions.length && set.offset + positions[i] == position; i++) {
+				position++;
+			}
+			
+			return Math.min(position, last);
+		}
+		
+		boolean list() {
+			return true;
+		}
+		
+		void print(TaintSet set) {
+			for(int i = 0; i < set.forms.positions.length; i++) {
+				System.out.printf("\tat %d\n", set.forms.positions[i]);
+			}
+		}
+	}
+	
+	// Chunked set or rope: Forms.chunks and Forms.starts, each chunk read through its own form
+	private static final class Chunks extends Form {
+		boolean contains(TaintSet set, int position) {
+			int i = findChunk(set.forms.starts, position);
+			return i >= 0 && set.forms.chunks[i].isTaintedAt(position - set.forms.starts[i]);
+		}
+		
+		boolean emptySet(TaintSet set, int start, int end) {
+			TaintSet[] chunks = set.forms.chunks;
+			int[] starts = set.forms.starts;
+			
+			for (int i = Math.max(findChunk(starts, start), 0); i < chunks.length && starts[i] < end; i++) {
+				TaintSet chunk = chunks[i];
+				int from = start - starts[i], to = end - starts[i];
 				
-				offset = 0; // same as offset = Math.max(offset, 0)
+				if (chunk.overlapsWith(from, to) && (chunk.singleInterval() || !chunk.emptySet(from, to))) {
+					return false;
+				}
+			}
+			
+			return true;
+		}
+		
+		long word(TaintSet set, int start, int from, int to) {
+			TaintSet[] chunks = set.forms.chunks;
+			int[] starts = set.forms.starts;
+			long word = 0;
+			
+			for (int i = Math.max(findChunk(starts, from - set.offset), 0); i < chunks.length && set.offset + starts[i] < to; i++) {
+				word |= chunks[i].word(start - set.offset - starts[i], to - start);
+			}
+			
+			return word;
+		}
+		
+		int countTainted(TaintSet set, int from, int to) {
+			TaintSet[] chunks = set.forms.chunks;
+			int[] starts = set.forms.starts;
+			int count = 0;
+			
+			for (int i = Math.max(findChunk(starts, from - set.offset), 0); i < chunks.length && set.offset + starts[i] < to; i++) {
+				count += chunks[i].countTainted(from - set.offset - starts[i], to - set.offset - starts[i]);
 			}
 			
-			return new TaintSet(offset, length, set.taintbits);
+			return count;
+		}
+		
+		int taintEnd(TaintSet set, int shift, int last) {
+			int n = set.forms.chunks.length - 1;
+			long start = (long) set.offset + set.forms.starts[n];
+			long end = start + set.forms.chunks[n].taintEnd((int) Math.min(shift + start, Integer.MAX_VALUE));
+			return (int) Math.min(end, Integer.MAX_VALUE);
+		}
+		
+		void print(TaintSet set) {
+			for(int i = 0; i < set.forms.chunks.length; i++) {
+				System.out.printf("chunk at %d: ", set.forms.starts[i]);
+				set.forms.chunks[i].printTaintBits();
+			}
 		}
 	}
 	
-	/**
-	 * Produce a set according to 'taint', where the first element of 'taint'
-	 * corresponds to the 'beginIndex' character of the parent string, up to endIndex
-	 * 
-	 * @param taint boolean array whose values are true where the characters are tainted
-	 * @param beginIndex Index of the character of the parent string that taint[0] corresponds to
-	 * @param endIndex Index of the character of the parent string that is the exclusive end of all taints
-	 * @return resultant TaintSet, null if no taint
-	 */
+	// Coarse set: Forms.blockbits, a bit per block of Forms.blocksize chars
+	private static final class Coarse extends Form {
+		boolean contains(TaintSet set, int position) {
+			return set.blockAt(position / set.forms.blocksize);
+		}
+		
+		boolean emptySet(TaintSet set, int start, int end) {
+			int blocksize = set.forms.blocksize;
+			return start >= end || firstBit(set.forms.blockbits, start / blocksize, (end - 1) / blocksize + 1) > (end - 1) / blocksize;
+		}
+		
+		long word(TaintSet set, int start, int from, int to) {
+			int blocksize = set.forms.blocksize;
+			long word = 0;
+			
+			for (int i = (from - set.offset) / blocksize; set.offset + i * blocksize < to; i++) {
+				if (set.blockAt(i)) {
+					int blockstart = Math.max(set.offset + i * blocksize, from);
+					word |= head((int) Math.min((long) set.offset + (long) (i + 1) * blocksize, to) - blockstart) >>> (blockstart - start);
+				}
+			}
+			
+			return word;
+		}
+		
+		void print(TaintSet set) {
+			for(int i = 0; i < set.forms.blockbits.length; i++) {
+				System.out.printf("\t%3d: %s (blocks of %d)\n", i, Long.toBinaryString(set.forms.blockbits[i]), set.forms.blocksize);
+			}
+		}
+	}
 	
-	public static TaintSet generate(boolean[] taint, int beginIndex, int endIndex) {
-		if (taint != null) {
-			TaintSet set = new TaintSet();
-			if (set.initializeTo(taint, beginIndex, endIndex)) {
-				return set;
+	// Labelled set: Forms.labels and Forms.layers, a char tainted if any layer taints it
+	private static final class Layers extends Form {
+		boolean contains(TaintSet set, int position) {
+			for (int i = 0; i < set.forms.layers.length; i++) {
+				if (set.forms.layers[i].isTaintedAt(set.offset + position)) {
+					return true;
+				}
 			}
+			
+			return false;
 		}
 		
-		return null;
+		boolean emptySet(TaintSet set, int start, int end) {
+			for (int i = 0; i < set.forms.layers.length; i++) {
+				if (set.forms.layers[i].hasTaintBetween(set.offset + start, set.offset + end)) {
+					return false;
+				}
+			}
+			
+			return true;
+		}
+		
+		long word(TaintSet set, int start, int from, int to) {
+			long word = 0;
+			
+			for (int i = 0; i < set.forms.layers.length; i++) {
+				word |= set.forms.layers[i].word(start, to - start);
+			}
+			
+			return word;
+		}
+		
+		int taintEnd(TaintSet set, int shift, int last) {
+			int end = 0;
+			
+			for (int i = 0; i < set.forms.layers.length; i++) {
+				end = Math.max(end, set.forms.layers[i].taintEnd(shift));
+			}
+			
+			return end;
+		}
+		
+		void print(TaintSet set) {
+			for(int i = 0; i < set.forms.layers.length; i++) {
+				System.out.printf("label %d: ", set.forms.labels[i]);
+				set.forms.layers[i].printTaintBits();
+			}
+		}
 	}
 	
-	/**
-	 * Produce a set completely from 'taint' (equivalent of a zero-offset taint array from v1)
-	 * @param taint Boolean array specifying which characters are tainted
-	 * @return resultant TaintSet, null if no taint
+	// Flag array: Forms.flags, a flag per char of the string from offset 0
+	private static final class Flagged extends Form {
+		boolean contains(TaintSet set, int position) {
+			return set.forms.flags[position];
+		}
+		
+		boolean emptySet(TaintSet set, int start, int end) {
+			for (int i = start; i < end; i++) {
+				if (set.forms.flags[i]) {
+					return false;
+				}
+			}
+			
+			return true;
+		}
+		
+		long word(TaintSet set, int start, int from, int to) {
+			long word = 0;
+			
+			for (int i = from; i < to; i++) {
+				word |= set.forms.flags[i] ? 0x8000000000000000L >>> (i - start) : 0;
+			}
+			
+			return word;
+		}
+		
+		void getTaintArray(TaintSet set, int from, int to, boolean[] taintarr, int at) {
+			System.arraycopy(set.forms.flags, from, taintarr, at + from, Math.min(to, set.forms.flags.length) - from);
+		}
+		
+		void print(TaintSet set) {
+			for(int i = 0; i < set.forms.flags.length; i += cellsize) {
+				System.out.printf("\t%3d: %s (flags)\n", i >> cellbits, Long.toBinaryString(set.word(i, Math.min(cellsize, set.forms.flags.length - i))));
+			}
+		}
+	}
+	
+	private final static Form complementForm = new Complement();
+	private final static Form positionForm = new Positions();
+	private final static Form chunkForm = new Chunks();
+	private final static Form coarseForm = new Coarse();
+	private final static Form labelForm = new Layers();
+	private final static Form flagForm = new Flagged();
+	
+	/**
+	 * constants for the program. hopefully compiled in.
+	 * idioms frequently used in the program use the following values
+	 * Examples:
+	 * 	x >> cellbits == x / cellsize
+	 * 	x & cellmax == x % cellsize
+	 * 	1 << cellbits == cellsize
+	 */
+	
+	final static byte cellsize = 64;
+	final static byte cellbits = 6;
+	final static byte cellmax = cellsize - 1; // 63
+	
+	public final static TaintSet allTainted = freeze(new TaintSet(0, Integer.MAX_VALUE));
+	
+	// Labels (see label()): UNLABELLED is taint that was never labelled; labels go up to MAXLABEL, so a mask of them fits an int
+	public final static int UNLABELLED = 0;
+	public final static int MAXLABEL = 31;
+	
+	// Shared frozen single intervals, like allTainted: intervals[offset][length - 1] is [offset, offset + length). Filled up front so threads never see one half built
+	private final static TaintSet[][] intervals = new TaintSet[16][32];
+	
+	static {
+		for (int offset = 0; offset < intervals.length; offset++) {
+			for (int length = 1; length <= intervals[offset].length; length++) {
+				intervals[offset][length - 1] = freeze(new TaintSet(offset, length));
+			}
+		}
+	}
+	
+	// The tuning knobs below are volatile, as any thread may set them, and each operation reads a knob once, into a local, so it never acts on two values of it
+	
+	// Sets with more runs than this are stored as position lists, complement lists or bitmaps rather than interval lists
+	private static volatile int maxIntervals = 4;
+	
+	// Complement lists spanning length chars may have up to length >> holeshift holes (and always maxIntervals): cellbits is where they stop being smaller than a bitmap
+	private static volatile int holeshift = cellbits;
+	
+	// Adaptive mode: maxIntervals, between adaptivefloor and adaptiveceiling, and holeshift follow the sets being built (see adapt())
+	private static volatile boolean adaptive = false;
+	private static volatile int adaptivefloor = 1;
+	private static volatile int adaptiveceiling = 64;
+	
+	// Adaptive mode statistics, since the last adapt(), halved by each: updated without locking, as a lost count only delays adapt()
+	private final static int adaptperiod = 1 << 10; // sets of several runs built between adapt()s
+	private final static int[] shapes = new int[32]; // sets of several runs built, by the bit length of their number of runs
+	private final static int[] listcheaper = new int[32]; // of those, the ones an interval list holds in no more memory than a bitmap
+	private static int observed; // sets counted in shapes since the last adapt()
+	private static int joins; // destructive appends since the last adapt()
+	
+	// Bitmaps longer than this many chars are split into chunks that substring/concat share instead of copying
+	private static volatile int chunksize = 1 << 16;
+	
+	// Concatenations whose bitmap would be longer than this many chars are kept as a rope over the two sides instead of copying them
+	private static volatile int ropesize = 1 << 12;
+	
+	// Whether freeze() replaces a bitmap by an identical one already in use (see intern()), so identical taint patterns share one array
+	private static volatile boolean interning = false;
+	
+	// Interning: a weak hash table of the bitmaps of frozen sets, chained by hash; entries go once their array is collected
+	private static Interned[] interned = new Interned[64];
+	private static int internedcount;
+	private static long internlookups;
+	private static long internhits;
+	private static final ReferenceQueue<long[]> collected = new ReferenceQueue<long[]>();
+	
+	private static final class Interned extends WeakReference<long[]> {
+		final int hash;
+		Interned next;
+		
+		Interned(long[] bits, int hash, Interned next) {
+			super(bits, collected);
+			this.hash = hash;
+			this.next = next;
+		}
+	}
+	
+	// A slice that would share less than this fraction of a bitmap gets a compact copy instead, so a short substring doesn't keep a large bitmap alive; 0 always shares
+	private static volatile double compactfraction = 0.25;
+	// Statistics of those copies, updated without locking, so slicing never waits on the class: a lost count only makes them a little low
+	private static long compactions;
+	private static long compactedbytes;
+	
+	// Coarse mode: sets of at least coarsesize chars that would need a bitmap keep a bit per block of coarsegrain chars instead, set if any char in it is tainted. 0 keeps every set exact
+	private static volatile int coarsegrain = 0;
+	private static volatile int coarsesize = 1 << 20;
+	
+	// Bitmaps of at least this many chars are moved off the heap when a String takes the set (see moveOffHeap()); Integer.MAX_VALUE keeps them all on it
+	private static volatile int offheapsize = Integer.MAX_VALUE;
+	
+	// taintbits of an off-heap set: still non-null so it's handled as a bitmap, but with no cells, so it's never written
+	private final static long[] offheap = new long[0];
+	
+	// Bytes of direct buffers the off-heap bitmaps may hold at once; a bitmap that would go over it stays on the heap
+	private static volatile long offheapbudget = 64L << 20;
+	// Off-heap accounting: the bytes and the number of buffers not yet collected, and the list keeping their references alive until they are
+	private static long offheapbytes;
+	private static int offheapbuffers;
+	private static Released released;
+	private static final ReferenceQueue<ByteBuffer> freed = new ReferenceQueue<ByteBuffer>();
+	
+	private static final class Released extends PhantomReference<ByteBuffer> {
+		final long bytes;
+		Released prev, next;
+		
+		Released(ByteBuffer buffer, long bytes) {
+			super(buffer, freed);
+			this.bytes = bytes;
+		}
+	}
+	
+	// Frozen bitmaps of at least this many chars get a Summary, built by the first range query on them; Integer.MAX_VALUE never builds one
+	private static volatile int summarysize = 1 << 16;
+	
+	// Words of the bitmap per entry of Summary.ranks
+	private final static int rankwords = 8;
+	
+	// The summary of a set that is to have one, until a range query builds it
+	private final static Summary unbuilt = new Summary();
+	
+	/**
+	 * The index of a large bitmap, so range queries on it don't scan every word: which words are not 0, and how many bits are set before every rankwords words.
+	 * Only the words of the set's own range are indexed, so a view of a shared bitmap costs no more than a copy of its range would.
+	 * 
+	 * Sets are marked as they're frozen (see summarize()), and the first range query that needs the summary builds it (see summary()), so sets that are
+	 * never queried never pay for one. Moving the bitmap off the heap or interning it keeps its contents, so the moved set takes the same summary
+	 */
+	
+	private static final class Summary {
+		final int base; // the first word indexed, the one holding the set's first char
+		final long[] nonzero; // bit i (most significant first, as in taintbits) is set if word base + i of the bitmap is not 0
+		final int[] ranks; // ranks[j] is the number of set bits in words [base, base + j * rankwords)
+		
+		// 'unbuilt'
+		private Summary() {
+			base = 0;
+			nonzero = null;
+			ranks = null;
+		}
+		
+		Summary(TaintSet set) {
+			int first = Math.max(set.offset, 0) - set.offset;
+			int capacity = set.forms.bitbuffer != null ? set.forms.bitbuffer.capacity() : set.taintbits.length;
+			base = first >> cellbits;
+			int cells = Math.max((int) Math.min(capacity, ((long) first + set.length + cellmax) >> cellbits) - base, 0);
+			nonzero = new long[numCells(cells)];
+			ranks = new int[cells / rankwords + 1];
+			
+			for (int i = 0, rank = 0; i < cells; i++) {
+				long word = set.cellAt(base + i);
+				
+				if (i % rankwords == 0) {
+					ranks[i / rankwords] = rank;
+				}
+				
+				if (word != 0) {
+					nonzero[i >>> cellbits] |= 0x8000000000000000L >>> (i & cellmax);
+					rank += Long.bitCount(word);
+				}
+				
+				if (i == cells - 1 && cells % rankwords == 0) {
+					ranks[cells / rankwords] = rank;
+				}
+			}
+		}
+	}
+	
+	// Up to this many substrings and concatenations are deferred on top of one another until their taint is read; 0 carries them out right away
+	private static volatile int lazydepth = 0;
+	
+	// A substring or concatenation that has not been carried out yet
+	private static final class Deferred {
+		final TaintSet set1, set2; // the two sets concatenated, or set1 the set substringed
+		final int arg1, arg2; // the lengths of the two strings, or the begin and end of the substring
+		final boolean concat;
+		final int depth; // 1 + the most deferred operations under this one
+		
+		Deferred(TaintSet set1, int arg1, TaintSet set2, int arg2, boolean concat) {
+			this.set1 = set1;
+			this.arg1 = arg1;
+			this.set2 = set2;
+			this.arg2 = arg2;
+			this.concat = concat;
+			this.depth = Math.max(deferred(set1), deferred(set2)) + 1;
+		}
+	}
+	
+	/**
+	 * How taint is stored and combined: the operations behind the public static methods of the same names, and behind isTaintedAt() and hasTaintBetween().
+	 * One is selected when TaintSet is initialized, by the system property javax.security.TaintSet.representation:
+	 * "hybrid" (HYBRID, the default), "flags" (FLAGS), or the name of a class implementing it with a public no-argument constructor
+	 * 
+	 * Implementations must accept sets made by any other (generate(int, int) and allTainted are always HYBRID's),
+	 * and must never modify a frozen set
+	 */
+	
+	public interface Representation {
+		TaintSet generate(boolean[] taint, int beginIndex, int endIndex);
+		TaintSet concat(TaintSet b1, int len1, TaintSet b2, int len2);
+		TaintSet substring(TaintSet set, int beginIndex, int endIndex);
+		TaintSet append(TaintSet b1, int len1, TaintSet b2, int len2, int capacity);
+		TaintSet replace(TaintSet set, int start, int end, int length, TaintSet replacement);
+		TaintSet move(TaintSet set, int size, int index);
+		TaintSet union(TaintSet set, int offset, TaintSet b, int len);
+		TaintSet set(TaintSet set, int position, boolean value);
+		boolean isTaintedAt(TaintSet set, int position);
+		boolean hasTaintBetween(TaintSet set, int start, int end);
+	}
+	
+	// Single intervals, interval lists, bitmaps, chunks and the rest, chosen per set by its shape
+	private static final class Hybrid implements Representation {
+		public TaintSet generate(boolean[] taint, int beginIndex, int endIndex) {
+			return generateHybrid(taint, beginIndex, endIndex);
+		}
+		
+		public TaintSet concat(TaintSet b1, int len1, TaintSet b2, int len2) {
+			int depthlimit = lazydepth;
+			
+			if (b1 == null && b2 == null) {
+				return null;
+			} else if (depthlimit > 0 && Math.max(deferred(b1), deferred(b2)) < depthlimit) {
+				return defer(new Deferred(b1, len1, b2, len2, true));
+			}
+			
+			return TaintSet.concat(b1, len1, b2, len2);
+		}
+		
+		public TaintSet substring(TaintSet set, int beginIndex, int endIndex) {
+			int depthlimit = lazydepth;
+			
+			// start off with two special, extremely-common cases
+			if (set == null || set == allTainted) {
+				return set;
+			} else if (depthlimit > 0 && deferred(set) < depthlimit) {
+				return defer(new Deferred(set, beginIndex, null, endIndex, false));
+			}
+			
+			return TaintSet.substring(set, beginIndex, endIndex);
+		}
+		
+		public TaintSet append(TaintSet b1, int len1, TaintSet b2, int len2, int capacity) {
+			return appendHybrid(b1, len1, b2, len2, capacity);
+		}
+		
+		public TaintSet replace(TaintSet set, int start, int end, int length, TaintSet replacement) {
+			return replaceHybrid(set, start, end, length, replacement);
+		}
+		
+		public TaintSet move(TaintSet set, int size, int index) {
+			return moveHybrid(set, size, index);
+		}
+		
+		public TaintSet union(TaintSet set, int offset, TaintSet b, int len) {
+			return unionHybrid(set, offset, b, len);
+		}
+		
+		public TaintSet set(TaintSet set, int position, boolean value) {
+			return setHybrid(set, position, value);
+		}
+		
+		public boolean isTaintedAt(TaintSet set, int position) {
+			return set.isTaintedAtHybrid(position);
+		}
+		
+		public boolean hasTaintBetween(TaintSet set, int start, int end) {
+			return set.hasTaintBetweenHybrid(start, end);
+		}
+		
+		public String toString() {
+			return "hybrid";
+		}
+	}
+	
+	/**
+	 * A flag per char, in a boolean[] as long as the string up to its last taint, as in the original design.
+	 * Every operation copies the flags; taint that runs to the end of a string of unknown length (allTainted) is left to HYBRID
+	 */
+	
+	private static final class Flags implements Representation {
+		public TaintSet generate(boolean[] taint, int beginIndex, int endIndex) {
+			if (taint == null) {
+				return null;
+			} else if (endIndex < 0) {
+				endIndex = taint.length;
+			}
+			
+			if (beginIndex < 0 || beginIndex >= endIndex || endIndex > taint.length) {
+				return null;
+			}
+			
+			boolean[] flags = new boolean[endIndex];
+			System.arraycopy(taint, beginIndex, flags, beginIndex, endIndex - beginIndex);
+			return flagged(flags);
+		}
+		
+		public TaintSet concat(TaintSet b1, int len1, TaintSet b2, int len2) {
+			b1 = computed(b1);
+			b2 = computed(b2);
+			
+			if (b1 == null && b2 == null) {
+				return null;
+			}
+			
+			len2 = b2 == null ? 0 : Math.min(len2, b2.getLastTaint());
+			
+			if ((long) len1 + len2 >= Integer.MAX_VALUE) {
+				return HYBRID.concat(b1, len1, b2, len2);
+			}
+			
+			boolean[] flags = new boolean[len1 + len2];
+			copy(b1, 0, len1, flags, 0);
+			copy(b2, 0, len2, flags, len1);
+			return flagged(flags);
+		}
+		
+		public TaintSet substring(TaintSet set, int beginIndex, int endIndex) {
+			set = computed(set);
+			
+			if (set == null || endIndex <= beginIndex) {
+				return null;
+			}
+			
+			boolean[] flags = new boolean[endIndex - beginIndex];
+			copy(set, beginIndex, endIndex, flags, 0);
+			return flagged(flags);
+		}
+		
+		public TaintSet append(TaintSet b1, int len1, TaintSet b2, int len2, int capacity) {
+			return concat(b1, len1, b2, len2);
+		}
+		
+		public TaintSet replace(TaintSet set, int start, int end, int length, TaintSet replacement) {
+			set = computed(set);
+			replacement = computed(replacement);
+			
+			if (end <= start) {
+				return set;
+			} else if (!bounded(set)) {
+				return HYBRID.replace(set, start, end, length, replacement);
+			}
+			
+			int last = set == null ? 0 : set.getLastTaint();
+			boolean[] flags = new boolean[Math.max(start + length, last - end + start + length)];
+			copy(set, 0, Math.min(start, last), flags, 0);
+			copy(replacement, 0, length, flags, start);
+			copy(set, end, Math.max(last, end), flags, start + length);
+			return flagged(flags);
+		}
+		
+		public TaintSet move(TaintSet set, int size, int index) {
+			set = computed(set);
+			
+			if (set == null || index >= set.getLastTaint() || size == 0) {
+				return set;
+			} else if (!bounded(set)) {
+				return HYBRID.move(set, size, index);
+			}
+			
+			int last = set.getLastTaint();
+			boolean[] flags = new boolean[last + size];
+			copy(set, 0, Math.min(index, index + size), flags, 0);
+			
+			for (int i = Math.max(index, -size); i < last; i++) {
+				flags[i + size] |= set.isTaintedAt(i);
+			}
+			
+			return flagged(flags);
+		}
+		
+		public TaintSet union(TaintSet set, int offset, TaintSet b, int len) {
+			set = computed(set);
+			b = computed(b);
+			
+			if (b == null) {
+				return set;
+			}
+			
+			len = Math.min(len, b.getLastTaint());
+			
+			if (!bounded(set) || (long) offset + len >= Integer.MAX_VALUE) {
+				return HYBRID.union(set, offset, b, len);
+			}
+			
+			int last = set == null ? 0 : set.getLastTaint();
+			boolean[] flags = new boolean[Math.max(last, offset + len)];
+			copy(set, 0, last, flags, 0);
+			
+			for (int i = Math.max(b.getFirstTaint(), -offset); i < len; i++) {
+				flags[offset + i] |= b.isTaintedAt(i);
+			}
+			
+			return flagged(flags);
+		}
+		
+		public TaintSet set(TaintSet set, int position, boolean value) {
+			set = computed(set);
+			
+			if (!bounded(set)) {
+				return HYBRID.set(set, position, value);
+			}
+			
+			int last = set == null ? 0 : set.getLastTaint();
+			boolean[] flags = new boolean[Math.max(last, position + 1)];
+			copy(set, 0, last, flags, 0);
+			flags[position] = value;
+			return flagged(flags);
+		}
+		
+		public boolean isTaintedAt(TaintSet set, int position) {
+			boolean[] flags = set.forms.flags;
+			
+			if (flags == null) {
+				return set.isTaintedAtHybrid(position);
+			}
+			
+			return position >= 0 && position < flags.length && flags[position];
+		}
+		
+		public boolean hasTaintBetween(TaintSet set, int start, int end) {
+			boolean[] flags = set.forms.flags;
+			
+			if (flags == null) {
+				return set.hasTaintBetweenHybrid(start, end);
+			}
+			
+			for (int i = Math.max(start, 0); i < end && i < flags.length; i++) {
+				if (flags[i]) {
+					return true;
+				}
+			}
+			
+			return false;
+		}
+		
+		public String toString() {
+			return "flags";
+		}
+		
+		// Whether 'set' ends at a known char, so its flags fit in an array
+		private static boolean bounded(TaintSet set) {
+			return set == null || set.getLastTaint() < Integer.MAX_VALUE;
+		}
+		
+		// Copies the taint of chars [from, to) of 'set' to flags[at ...]
+		private static void copy(TaintSet set, int from, int to, boolean[] flags, int at) {
+			if (set == null) {
+				return;
+			} else if (set.forms.flags != null) {
+				if (Math.min(to, set.forms.flags.length) > from) {
+					System.arraycopy(set.forms.flags, from, flags, at, Math.min(to, set.forms.flags.length) - from);
+				}
+				
+				return;
+			}
+			
+			int first = Math.max(from, set.getFirstTaint()), last = Math.min(to, set.getLastTaint());
+			
+			if (first < last) {
+				set.getTaintArray(first, last, flags, at + first - from);
+			}
+		}
+		
+		// The set of 'flags', cut after its last taint; null if there is none
+		private static TaintSet flagged(boolean[] flags) {
+			int length = flags.length;
+			
+			while (length > 0 && !flags[length - 1]) {
+				length--;
+			}
+			
+			if (length == 0) {
+				return null;
+			}
+			
+			TaintSet set = new TaintSet(0, length);
+			set.forms(flagForm).flags = length == flags.length ? flags : Arrays.copyOf(flags, length);
+			set.frozen = true;
+			return set;
+		}
+	}
+	
+	public final static Representation HYBRID = new Hybrid();
+	public final static Representation FLAGS = new Flags();
+	
+	// The representation in use; final, so calls through it can be inlined
+	private final static Representation representation = representation();
+	
+	// Reads javax.security.TaintSet.representation; HYBRID if it's unset or can't be read, as it may be before the VM is fully up,
+	// or if it names a class that can't be loaded, made or used as a Representation. Nothing is reported: this runs when String is first used
+	private static Representation representation() {
+		String name;
+		
+		try {
+			name = System.getProperty("javax.security.TaintSet.representation", "hybrid");
+		} catch (RuntimeException e) { // a SecurityException, or no properties yet
+			return HYBRID;
+		}
+		
+		if (name.equals("hybrid")) {
+			return HYBRID;
+		} else if (name.equals("flags")) {
+			return FLAGS;
+		}
+		
+		try {
+			return (Representation) Class.forName(name).getDeclaredConstructor().newInstance();
+		} catch (Exception e) { // reflective failures, a class that isn't a Representation, or its constructor throwing
+			return HYBRID;
+		} catch (LinkageError e) { // NoClassDefFoundError, ExceptionInInitializerError, UnsupportedClassVersionError: thrown on, they'd leave TaintSet unusable
+			return HYBRID;
+		}
+	}
+	
+	/**
+	 * @return	the representation selected by javax.security.TaintSet.representation
+	 */
+	
+	public static Representation getRepresentation() {
+		return representation;
+	}
+	
+	private TaintSet() {
+		// System.out.println("Constructing TaintSet");
+	}
+
+	/**
+	 * Initializes a taint set for a substring starting at offset with length maxlen
+	 * @param set TaintSet of the string that is being substringed
+	 * @param offset The index of the original string that the new string begins on
+	 * @param maxlen The length of the resultant substring
+	 */
+	
+	public TaintSet(int offset, int length, int[] taintbits) {
+		this(offset, length, taintbits == null ? null : toWords(taintbits));
+	}
+	
+	private TaintSet(int offset, int length, long[] taintbits) {
+		this.offset = offset;
+		this.length = length;
+		this.taintbits = taintbits;
+	}
+	
+	// single interval [offset, offset + length)
+	private TaintSet(int offset, int length) {
+		this.offset = offset;
+		this.length = length;
+	}
+	
+	// The single interval [offset, offset + length): the shared instance if there is one, since most short substrings' taints are small intervals
+	private static TaintSet interval(int offset, int length) {
+		if (offset >= 0 && offset < intervals.length && length > 0 && length <= intervals[offset].length) {
+			return intervals[offset][length - 1];
+		}
+		
+		return new TaintSet(offset, length);
+	}
+	
+	/*************************
+	 * Static Factory Methods
+	 *************************/
+	
+	/**
+	 * Combines two strings whose TaintSet objects are b1 and b2 and string lengths are len1 and len2
+	 * destructive is true iff you want to only modify b1 (as in Buffer/Builder.append)
+	 * capacity is used only when it's destructive
+	 */
+
+	private static TaintSet generate(TaintSet b1, int len1, final TaintSet b2, int len2, int capacity) {
+		int chunklimit = chunksize; // read once, as another thread may change it
+		
+		if (b1 != null) {
+			// b1 tainted
+			if (b2 != null) {
+				// both tainted
+				
+				// both fully tainted, then return allTainted
+				if (b1.length >= len1 && b1.offset == 0 && b1.singleInterval()) {
+					if (b2.length >= len2 && b2.offset == 0 && b2.singleInterval()) {
+						return allTainted;
+					}
+					
+					// if b1 is allTainted then make a new set--don't modify b1
+					capacity = 0;
+				} else if (b1.offset < 0 || b1.frozen) {
+					// b1 shares the bitmap of the string it was substringed from, or a string holds it
+					capacity = 0;
+				}
+				
+				if (coarsens(b1, len1, b2, len2)) {
+					return concatBlocks(b1, len1, b2, len2, capacity);
+				}
+				
+				// at least one has an untainted portion
+				int b1start = b1.getFirstTaint();
+				int b1len = len1 - b1start; // length from the first taint to the end of string 1
+				int prevb1len = Math.min(b1.length, b1len);
+				int length = b1len + Math.min(b2.getLastTaint(), Math.min(len2, Integer.MAX_VALUE - len1)); // saturates for unbounded b2
+				
+				if (b1.runsOnly() && b2.runsOnly()) {
+					// no bitmaps: an interval list unless the two taints touch
+					if (b1len > prevb1len || b2.offset > 0 || !b1.singleInterval() || !b2.singleInterval()) {
+						return joinRuns(b1, len1, b2, len2);
+					}
+					
+					TaintSet set = capacity > 0 ? b1 : new TaintSet(b1start, 0);
+					set.length = length;
+					return set;
+				}
+				
+				if (b1.forms.chunks != null || b2.forms.chunks != null || length > chunklimit) {
+					return concatChunks(b1, len1, b2, len2, capacity);
+				}
+				
+				if (length <= cellsize && (capacity == 0 || b1.taintbits == null)) {
+					// fits in a word: no bitmap to allocate
+					int shift = len1 - b1start;
+					long word = b1.word(b1start, prevb1len) | b2.word(0, Math.min(len2, cellsize - shift)) >>> shift;
+					
+					if (capacity == 0 || word == 0) {
+						return inline(b1start, word, length);
+					}
+					
+					b1.runs = null;
+					b1.forms = none;
+					b1.inlinebits = word;
+					b1.length = length;
+					return b1;
+				}
+				
+				// must merge/create taintbits
+				TaintSet set;
+				
+				if (capacity > 0) {
+					set = b1;
+				} else {
+					set = new TaintSet();
+					set.offset = b1start;
+				}
+				
+				if (capacity == 0) {
+					set.taintbits = new long[numCells(length)];
+					set.fill(0, b1, prevb1len);
+				} else if (b1.taintbits == null) {
+					// b1 is a single interval, a list or inline, need to convert to bitmap
+					int[] runs = b1.runsOnly() && !b1.singleInterval() ? b1.taintedRuns() : null;
+					long bits = b1.inlinebits;
+					set.runs = null;
+					set.forms = none;
+					set.inlinebits = 0;
+					set.taintbits = new long[numCells(Math.min(capacity - set.offset, chunklimit))];
+					
+					if (bits != 0) {
+						set.taintbits[0] = bits & head(prevb1len);
+					} else if (runs == null) {
+						set.setTainted(0, prevb1len);
+					} else {
+						set.setTainted(runs, 0, prevb1len);
+					}
+				} else {
+					// b1's bitmap may still hold bits past its taint from before it was clipped
+					set.setUntainted(prevb1len, length);
+				}
+				
+				set.length = length;
+				return set.fill(len1, b2, len2 - b2.getFirstTaint()); // set = set union (b2 + len1)
+			} else {
+				// b1 tainted; b2 untainted
+				
+				// don't want set from b1 to spill over to the new set
+				if (b1.getLastTaint() > len1) {
+					return slice(b1, 0, len1, 0);
+				} else {
+					return b1;
+				}
+			}
+		} else if (b2 != null) {
+			// b1 untainted; b2 tainted
+			return slice(b2, 0, len2, len1);
+		} else {
+			// both untainted
+			return null;
+		}
+	}
+	
+	/**
+	 * The taint of characters [begin, end) of the string whose TaintSet is 'set', moved so that 'begin' lands on 'shift'.
+	 * Unlike the substring generate(), never widens the result to allTainted
+	 * 
+	 * Shares set.taintbits unless set is a substring (negative offset) that has to move to the right,
+	 * since the bits before the first taint of a substring belong to its parent
+	 */
+	
+	private static TaintSet slice(TaintSet set, int begin, int end, int shift) {
+		int length = set.overlapLength(begin, end);
+		
+		if (length <= 0) {
+			return null;
+		}
+		
+		int first = Math.max(set.getFirstTaint(), begin); // first possibly tainted char of the slice, in the parent
+		
+		if (set.forms.flags != null) {
+			return slice(makeCopy(set), begin, end, shift);
+		} else if (set.forms.blockbits != null) {
+			return sliceBlocks(set, first, first + length, shift - begin);
+		} else if (set.forms.depth > 0) {
+			return sliceRope(set, first, first + length, shift - begin);
+		} else if (set.forms.chunks != null) {
+			return sliceChunks(set, first, first + length, shift - begin);
+		} else if (set.runs != null || set.forms.holes != null || set.forms.positions != null) {
+			return sliceRuns(set, first, first + length, shift - begin);
+		} else if (set.inlinebits != 0 || (set.taintbits != null && length <= cellsize)) {
+			// short enough to copy into a word instead of sharing the bitmap
+			return inline(first - begin + shift, set.word(first, length), length);
+		} else if (set.taintbits == null) {
+			return interval(first - begin + shift, length);
+		} else if (shift == 0 || set.offset >= begin) {
+			return share(set, set.offset - begin + shift, length);
+		} else {
+			TaintSet view = view(set, set.offset - begin, length);
+			return new TaintSet(first - begin + shift, length, new long[numCells(length)]).fill(shift, view, length);
+		}
+	}
+	
+	/**
+	 * A set at 'offset' sharing the bitmap of 'set'; both are frozen, since writing to either would change the other.
+	 * If it would use less than compactfraction of the bitmap, it gets a compact copy of its part instead, and 'set' is left alone
+	 */
+	
+	private static TaintSet share(TaintSet set, int offset, int length) {
+		TaintSet shared = view(set, offset, length);
+		
+		int cells = set.forms.bitbuffer == null ? set.taintbits.length : set.forms.bitbuffer.capacity();
+		
+		if (numCells(length) < cells * compactfraction) {
+			compacted(cells - numCells(length));
+			return new TaintSet(shared.getFirstTaint(), length, new long[numCells(length)]).fill(0, shared);
+		}
+		
+		shared.frozen = true;
+		set.frozen = true;
+		return shared;
+	}
+	
+	// A set at 'offset' reading the bitmap of 'set', on or off the heap
+	private static TaintSet view(TaintSet set, int offset, int length) {
+		TaintSet view = new TaintSet(offset, length, set.taintbits);
+		
+		if (set.forms.bitbuffer != null) {
+			view.forms().bitbuffer = set.forms.bitbuffer;
+		}
+		
+		return view;
+	}
+	
+	// Counts a slice copied instead of sharing a bitmap, which it would have kept 'cells' more cells of alive
+	private static void compacted(int cells) {
+		compactions++;
+		compactedbytes += (long) cells << 3;
+	}
+	
+	/**
+	 * The tightest form of 'set': its offset and length shrunk to its first and last tainted chars, the zero words before them dropped,
+	 * and a single interval or an inline bitmap when the taint fits one. Lists are already packed this way
+	 * @return set itself if it's already tight, null if nothing is tainted
+	 */
+	
+	private static TaintSet normalize(TaintSet set) {
+		if (set.inlinebits != 0) {
+			long bits = set.inlinebits;
+			int length = cellsize - Long.numberOfTrailingZeros(bits);
+			
+			if (bits < 0 && length == set.length && Long.bitCount(bits) != length) {
+				return set;
+			}
+			
+			return inline(set.offset, bits, length);
+		} else if (set.taintbits == null || set.forms.bitbuffer != null) {
+			return set; // an off-heap bitmap is left as it is rather than copied back onto the heap
+		}
+		
+		int from = set.getFirstTaint() - set.offset;
+		int to = (int) Math.min((long) from + set.length, (long) set.taintbits.length << cellbits);
+		int first = firstBit(set.taintbits, from, to);
+		
+		if (first >= to) {
+			return null;
+		}
+		
+		int length = lastBit(set.taintbits, first, to) + 1 - first;
+		
+		if (length <= cellsize) {
+			return inline(set.offset + first, set.bitsAt(first, length), length);
+		} else if (countBits(set.taintbits, first, first + length) == length) {
+			return interval(set.offset + first, length);
+		} else if (first == from) {
+			return length == set.length ? set : share(set, set.offset, length);
+		}
+		
+		// the bits have to move to drop the zeros before the first taint
+		TaintSet tight = new TaintSet(set.offset + first, length, new long[numCells(length)]);
+		
+		for (int i = 0; i < length; i += cellsize) {
+			tight.taintbits[i >> cellbits] = set.bitsAt(first + i, Math.min(cellsize, length - i));
+		}
+		
+		return tight;
+	}
+	
+	// The runs of 'set' (an interval list, a complement list or a position list) within [from, to), moved right by 'shift'
+	private static TaintSet sliceRuns(TaintSet set, int from, int to, int shift) {
+		int[] runs = set.taintedRuns();
+		int i = findRun(runs, from - set.offset);
+		int[] sliced = new int[runs.length - i];
+		int n = 0;
+		to = shift > 0 ? Math.min(to, Integer.MAX_VALUE - shift) : to; // saturates for an unbounded last run
+		
+		for (; i < runs.length && set.offset + runs[i] < to; i += 2) {
+			n = addRun(sliced, n, Math.max(set.offset + runs[i], from) + shift, Math.min(set.offset + runs[i + 1], to) + shift);
+		}
+		
+		return pack(sliced, n);
+	}
+	
+	// Concatenation of two strings whose taints are single intervals or interval lists
+	private static TaintSet joinRuns(TaintSet b1, int len1, TaintSet b2, int len2) {
+		int[] runs = new int[b1.runBounds() + b2.runBounds()];
+		int n = collectRuns(runs, 0, b1, len1, 0);
+		n = collectRuns(runs, n, b2, Math.min(len2, Integer.MAX_VALUE - len1), len1);
+		
+		return pack(runs, n);
+	}
+	
+	// set (a single interval or an interval list) union (b + offset) where b is another such set of a string of length len
+	private static TaintSet unionRuns(TaintSet set, int offset, TaintSet b, int len) {
+		int[] a = new int[set.runBounds()];
+		int na = collectRuns(a, 0, set, Integer.MAX_VALUE, 0);
+		int[] c = new int[b.runBounds()];
+		int nc = collectRuns(c, 0, b, Math.min(len, Integer.MAX_VALUE - offset), offset);
+		
+		// merge by start; addRun() coalesces overlapping runs
+		int[] runs = new int[na + nc];
+		int n = 0;
+		
+		for (int i = 0, j = 0; i < na || j < nc; ) {
+			if (j >= nc || (i < na && a[i] <= c[j])) {
+				n = addRun(runs, n, a[i], a[i + 1]);
+				i += 2;
+			} else {
+				n = addRun(runs, n, c[j], c[j + 1]);
+				j += 2;
+			}
+		}
+		
+		return pack(runs, n);
+	}
+	
+	/**
+	 * Appends the runs of 'set' (a single interval or a list) that lie before 'len', moved right by 'shift',
+	 * to the absolute runs runs[0 .. n)
+	 * @return the new number of bounds in runs
+	 */
+	
+	private static int collectRuns(int[] runs, int n, TaintSet set, int len, int shift) {
+		if (set.singleInterval()) {
+			int first = set.getFirstTaint();
+			return addRun(runs, n, first + shift, first + Math.min(set.length, len - first) + shift);
+		}
+		
+		int[] tainted = set.taintedRuns();
+		
+		for (int i = 0; i < tainted.length && set.offset + tainted[i] < len; i += 2) {
+			n = addRun(runs, n, set.offset + tainted[i] + shift, Math.min(set.offset + tainted[i + 1], len) + shift);
+		}
+		
+		return n;
+	}
+	
+	// Appends [start, end) to runs[0 .. n), coalescing it with the last run if they touch; returns the new n
+	private static int addRun(int[] runs, int n, int start, int end) {
+		if (start >= end) {
+			return n;
+		} else if (n > 0 && runs[n - 1] >= start) {
+			runs[n - 1] = Math.max(runs[n - 1], end);
+			return n;
+		} else {
+			runs[n] = start;
+			runs[n + 1] = end;
+			return n + 2;
+		}
+	}
+	
+	/**
+	 * Packs the absolute runs runs[0 .. n) into a single interval, an interval list
+	 * or, past maxIntervals runs, a position list if the tainted chars are sparse enough,
+	 * a complement list if the holes between the runs are few enough, otherwise a bitmap
+	 * @return resultant TaintSet, null if there are no runs
+	 */
+	
+	private static TaintSet pack(int[] runs, int n) {
+		int runlimit = maxIntervals;
+		int chunklimit = chunksize;
+		
+		if (n == 0) {
+			return null;
+		}
+		
+		if (n == 2) {
+			return interval(runs[0], runs[1] - runs[0]);
+		} else if (adaptive) {
+			observe(n >> 1, runs[n - 1] - runs[0]);
+		}
+		
+		TaintSet set = new TaintSet(runs[0], runs[n - 1] - runs[0]);
+		
+		if (n <= runlimit << 1 || runs[n - 1] == Integer.MAX_VALUE) {
+			// interval lists are never modified in place, so runs can be reused when it's the right size
+			int[] relative = runs.length == n ? runs : new int[n];
+			
+			for (int i = 0; i < n; i++) {
+				relative[i] = runs[i] - set.offset;
+			}
+			
+			set.runs = relative;
+			return set;
+		}
+		
+		int tainted = countTainted(runs, n);
+		
+		if (sparse(tainted, n >> 1, set.length, runlimit)) {
+			// isolated taint: list each tainted char
+			set.forms(positionForm).positions = new int[tainted];
+			
+			for (int i = 0, k = 0; i < n; i += 2) {
+				for (int position = runs[i]; position < runs[i + 1]; position++) {
+					set.forms.positions[k++] = position - set.offset;
+				}
+			}
+		} else if (set.length > cellsize && (n >> 1) - 1 <= maxHoles(set.length, runlimit)) {
+			// mostly tainted: list the holes between the runs instead
+			set.forms(complementForm).holes = new int[n - 2];
+			
+			for (int i = 1; i < n - 1; i++) {
+				set.forms.holes[i - 1] = runs[i] - set.offset;
+			}
+		} else if (set.length > chunklimit) {
+			return chunkRuns(runs, n, chunklimit);
+		} else {
+			if (set.length > cellsize) {
+				set.taintbits = new long[numCells(set.length)];
+			}
+			
+			for (int i = 0; i < n; i += 2) {
+				set.setTainted(runs[i] - set.offset, runs[i + 1] - set.offset);
+			}
+		}
+		
+		return set;
+	}
+	
+	// The absolute runs runs[0 .. n), too long for one bitmap, packed chunk by chunk
+	private static TaintSet chunkRuns(int[] runs, int n, int chunklimit) {
+		int[] starts = new int[(runs[n - 1] - runs[0]) / chunklimit + 1];
+		TaintSet[] chunks = new TaintSet[starts.length];
+		int[] window = new int[n + 2]; // never the exact size, so pack() copies it
+		int count = 0;
+		
+		for (int i = 0, position = runs[0], begin = runs[0]; i < n; ) {
+			// the window holding 'position', aligned to the first run
+			begin += (position - begin) / chunklimit * chunklimit;
+			int end = begin + chunklimit;
+			int m = 0;
+			
+			while (i < n && position < end) {
+				int stop = Math.min(runs[i + 1], end);
+				m = addRun(window, m, position - begin, stop - begin);
+				
+				if (stop < runs[i + 1]) {
+					position = stop; // the run goes on in the next window
+				} else if ((i += 2) < n) {
+					position = runs[i];
+				}
+			}
+			
+			count = addChunk(starts, chunks, count, begin, pack(window, m));
+		}
+		
+		return packChunks(starts, chunks, count);
+	}
+	
+	// The chunks of 'set' (a chunked set) within [from, to), moved right by 'shift'
+	private static TaintSet sliceChunks(TaintSet set, int from, int to, int shift) {
+		int[] starts = new int[set.chunkBound()];
+		TaintSet[] chunks = new TaintSet[starts.length];
+		
+		return packChunks(starts, chunks, collectChunks(starts, chunks, 0, set, from, to, shift));
+	}
+	
+	/**
+	 * Concatenation where either set is chunked or the result is longer than a chunk
+	 * 
+	 * Only the chunks at the seam are sliced or merged; the rest are shared with b1 and b2.
+	 * When destructive (capacity > 0) and b2 fits in the last chunk of b1, it is appended to that chunk in place
+	 */
+	
+	private static TaintSet concatChunks(TaintSet b1, int len1, TaintSet b2, int len2, int capacity) {
+		int chunklimit = chunksize;
+		
+		if (capacity > 0 && b1.forms.chunks != null && b2.forms.chunks == null && b1.getLastTaint() <= len1) {
+			int last = b1.forms.chunks.length - 1;
+			int start = b1.offset + b1.forms.starts[last];
+			
+			if ((long) len1 - start + Math.min(b2.getLastTaint(), len2) <= chunklimit) {
+				TaintSet tail = b1.forms.ownsTail ? b1.forms.chunks[last] : makeCopy(b1.forms.chunks[last]);
+				tail = appendHybrid(tail, len1 - start, b2, len2, chunklimit);
+				
+				b1.forms.chunks[last] = tail;
+				b1.forms().ownsTail = true;
+				b1.length = b1.forms.starts[last] + tail.getLastTaint();
+				return b1;
+			}
+		}
+		
+		int[] starts = new int[b1.chunkBound() + b2.chunkBound()];
+		TaintSet[] chunks = new TaintSet[starts.length];
+		int n = collectChunks(starts, chunks, 0, b1, 0, len1, 0);
+		n = collectChunks(starts, chunks, n, b2, 0, len2, len1);
+		
+		return packChunks(starts, chunks, n);
+	}
+	
+	// set union (b + offset) where b, the taint of [first - offset, last - offset), or set is chunked or the union is longer than a chunk
+	private static TaintSet unionChunks(TaintSet set, int offset, TaintSet b, int first, int last) {
+		int chunklimit = chunksize;
+		int[] starts = new int[set.chunkBound() + (last - first) / chunklimit + 2];
+		TaintSet[] chunks = new TaintSet[starts.length];
+		int n = collectChunks(starts, chunks, 0, set, 0, first, 0);
+		
+		// only the chunk-sized windows that b covers are rebuilt
+		for (int begin = first, end; begin < last; begin = end) {
+			end = begin + Math.min(chunklimit, last - begin);
+			TaintSet window = slice(set, begin, end, 0);
+			TaintSet piece = slice(b, begin - offset, end - offset, 0);
+			
+			if (piece == null || !piece.hasTaintBetween(0, end - begin)) {
+				n = addChunk(starts, chunks, n, begin, window);
+				continue;
+			}
+			
+			// a window of a rope (or of unaligned chunks) may still be chunked, and would come straight back here: both are flattened
+			window = window != null && window.forms.chunks != null ? flat(window) : makeCopy(window); // union() modifies it, and slices share bitmaps
+			n = addChunk(starts, chunks, n, begin, unionHybrid(window, 0, flat(piece), end - begin));
+		}
+		
+		n = collectChunks(starts, chunks, n, set, last, Integer.MAX_VALUE, 0);
+		return packChunks(starts, chunks, n);
+	}
+	
+	// 'set', a chunked set spanning at most a chunk, as a bitmap of its own: each chunk, and each side of a rope, filled into it. Any other set as it is
+	private static TaintSet flat(TaintSet set) {
+		if (set == null || set.forms.chunks == null) {
+			return set;
+		}
+		
+		int first = set.getFirstTaint();
+		int length = set.getLastTaint() - first;
+		return new TaintSet(first, length, new long[numCells(length)]).fillChunks(0, set);
+	}
+	
+	// UNION each chunk of 'set', shifted to the right by 'offset', into 'taintbits'
+	private TaintSet fillChunks(int offset, TaintSet set) {
+		for (int i = 0; i < set.forms.chunks.length; i++) {
+			int start = offset + set.offset + set.forms.starts[i];
+			
+			if (set.forms.chunks[i].forms.chunks != null) {
+				fillChunks(start, set.forms.chunks[i]);
+			} else {
+				fill(start, set.forms.chunks[i]);
+			}
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * Appends the taint of 'set' within [from, to), moved right by 'shift', to chunks[0 .. n)
+	 * 
+	 * Bitmaps are cut into chunks. The chunks of a chunked set are shared; only those cut by from or to are sliced
+	 * @return the new number of chunks
+	 */
+	
+	private static int collectChunks(int[] starts, TaintSet[] chunks, int n, TaintSet set, int from, int to, int shift) {
+		if (set.forms.chunks == null) {
+			int step = set.taintbits == null ? Integer.MAX_VALUE : chunksize;
+			int last = Math.min(set.getLastTaint(), to);
+			
+			for (int begin = Math.max(set.getFirstTaint(), from), end; begin < last; begin = end) {
+				end = begin + Math.min(step, last - begin);
+				n = addChunk(starts, chunks, n, begin + shift, slice(set, begin, end, 0));
+			}
+			
+			return n;
+		}
+		
+		int last = set.forms.chunks.length - 1;
+		
+		for (int i = Math.max(findChunk(set.forms.starts, from - set.offset), 0); i <= last && set.offset + set.forms.starts[i] < to; i++) {
+			int start = set.offset + set.forms.starts[i];
+			int begin = Math.max(from - start, 0);
+			TaintSet chunk = set.forms.chunks[i];
+			
+			if (begin > 0 || chunk.getLastTaint() > to - start) {
+				chunk = slice(chunk, begin, to - start, 0);
+			}
+			
+			if (i == last && chunk == set.forms.chunks[i] && set.forms.ownsTail) {
+				set.forms.ownsTail = false; // the new set shares it; 'set' isn't frozen, as a frozen set never owns its tail
+			}
+			
+			n = addChunk(starts, chunks, n, start + begin + shift, chunk);
+		}
+		
+		return n;
+	}
+	
+	/**
+	 * Appends 'piece', whose positions are relative to 'start', to chunks[0 .. n),
+	 * merging it into the last chunk if the two fit in one chunk. A chunked piece adds each of its chunks
+	 * @return the new number of chunks
+	 */
+	
+	private static int addChunk(int[] starts, TaintSet[] chunks, int n, int start, TaintSet piece) {
+		int chunklimit = chunksize;
+		
+		if (piece != null && piece.forms.chunks == null && piece.getLastTaint() > chunklimit && piece.getFirstTaint() > 0) {
+			// move the start up to the taint, so a bitmap chunk never reaches past chunksize
+			int first = piece.getFirstTaint();
+			piece = slice(piece, first, Integer.MAX_VALUE, 0);
+			start += first;
+		}
+		
+		if (piece == null) {
+			return n;
+		} else if (piece.forms.chunks != null) {
+			for (int i = 0; i < piece.forms.chunks.length; i++) {
+				n = addChunk(starts, chunks, n, start + piece.offset + piece.forms.starts[i], piece.forms.chunks[i]);
+			}
+			
+			return n;
+		} else if (n > 0 && (long) start + piece.getLastTaint() - starts[n - 1] <= chunklimit) {
+			int len1 = start - starts[n - 1];
+			TaintSet merged = generate(chunks[n - 1], len1, piece, piece.getLastTaint(), 0);
+			chunks[n - 1] = merged == allTainted ? new TaintSet(0, len1 + piece.getLastTaint()) : merged;
+			return n;
+		} else {
+			starts[n] = start;
+			chunks[n] = piece;
+			return n + 1;
+		}
+	}
+	
+	/**
+	 * Packs the chunks chunks[0 .. n), at absolute positions starts[0 .. n), into a chunked set,
+	 * or into the chunk itself if there's only one
+	 * @return resultant TaintSet, null if there are no chunks
+	 */
+	
+	private static TaintSet packChunks(int[] starts, TaintSet[] chunks, int n) {
+		if (n == 0) {
+			return null;
+		} else if (n == 1) {
+			return slice(chunks[0], 0, Integer.MAX_VALUE - starts[0], starts[0]);
+		}
+		
+		TaintSet set = new TaintSet(starts[0], (int) Math.min((long) starts[n - 1] - starts[0] + chunks[n - 1].getLastTaint(), Integer.MAX_VALUE));
+		set.forms().starts = new int[n];
+		set.forms(chunkForm).chunks = new TaintSet[n];
+		
+		for (int i = 0; i < n; i++) {
+			set.forms.starts[i] = starts[i] - set.offset;
+		}
+		
+		System.arraycopy(chunks, 0, set.forms.chunks, 0, n);
+		return set;
+	}
+	
+	/**
+	 * Concatenation of two strings whose TaintSet objects are b1 and b2 as a rope; see join()
+	 * Sets that reach past the end of their string are sliced first, since a rope's left side must end where its right side begins
+	 */
+	
+	private static TaintSet concatRope(TaintSet b1, int len1, TaintSet b2, int len2) {
+		TaintSet a = b1.getLastTaint() > len1 ? slice(b1, 0, len1, 0) : b1;
+		TaintSet b = b2.getLastTaint() > len2 ? slice(b2, 0, len2, 0) : b2;
+		
+		if (a == null || b == null) {
+			return generate(a, len1, b, len2, 0);
+		}
+		
+		return join(a, len1, b, len2);
+	}
+	
+	/**
+	 * Concatenation of 'a', the taint of a string of length lena, and 'b', the taint of the string of length lenb after it
+	 * 
+	 * The shallower side is joined to the nearest edge of the deeper one, so only the nodes on that path are rebuilt and the rest are shared.
+	 * Two sets that aren't ropes are merged into one when they're short or few runs (as generate() would), otherwise a node is made over them
+	 * @return resultant TaintSet, a rope unless a and b were merged
+	 */
+	
+	private static TaintSet join(TaintSet a, int lena, TaintSet b, int lenb) {
+		if (a.forms.depth > b.forms.depth) {
+			int split = a.offset + a.forms.starts[1];
+			return balance(a.offset, a.forms.chunks[0], split, join(a.forms.chunks[1], lena - split, b, lenb));
+		} else if (b.forms.depth > a.forms.depth) {
+			// the untainted chars before b's left side are appended to a
+			return balance(0, join(a, lena + b.offset, b.forms.chunks[0], b.forms.starts[1]), lena + b.offset + b.forms.starts[1], b.forms.chunks[1]);
+		} else if (a.forms.depth == 0 && mergeable(a, lena, b, lenb)) {
+			TaintSet merged = generate(a, lena, b, lenb, 0);
+			return merged == allTainted ? new TaintSet(0, (int) Math.min((long) lena + lenb, Integer.MAX_VALUE)) : merged; // may end up on the left of a node
+		}
+		
+		return node(0, a, lena, b);
+	}
+	
+	/**
+	 * A rope node over l, whose string starts at lpos, and r, whose string starts at rpos
+	 * 
+	 * If the depths of l and r differ by two, it's rotated (twice if the middle grandchild is the deeper) so they differ by at most one again
+	 */
+	
+	private static TaintSet balance(int lpos, TaintSet l, int rpos, TaintSet r) {
+		if (l.forms.depth > r.forms.depth + 1) {
+			TaintSet ll = l.forms.chunks[0];
+			TaintSet lr = l.forms.chunks[1];
+			int llpos = lpos + l.offset;
+			int lrpos = llpos + l.forms.starts[1];
+			
+			if (ll.forms.depth >= lr.forms.depth) {
+				return node(llpos, ll, lrpos - llpos, node(0, lr, rpos - lrpos, r));
+			}
+			
+			int lrlpos = lrpos + lr.offset;
+			int lrrpos = lrlpos + lr.forms.starts[1];
+			return node(llpos, node(0, ll, lrlpos - llpos, lr.forms.chunks[0]), lrrpos - llpos, node(0, lr.forms.chunks[1], rpos - lrrpos, r));
+		} else if (r.forms.depth > l.forms.depth + 1) {
+			TaintSet rl = r.forms.chunks[0];
+			TaintSet rr = r.forms.chunks[1];
+			int rlpos = rpos + r.offset;
+			int rrpos = rlpos + r.forms.starts[1];
+			
+			if (rr.forms.depth >= rl.forms.depth) {
+				return node(lpos, node(0, l, rlpos - lpos, rl), rrpos - lpos, rr);
+			}
+			
+			int rllpos = rlpos + rl.offset;
+			int rlrpos = rllpos + rl.forms.starts[1];
+			return node(lpos, node(0, l, rllpos - lpos, rl.forms.chunks[0]), rlrpos - lpos, node(0, rl.forms.chunks[1], rrpos - rlrpos, rr));
+		}
+		
+		return node(lpos, l, rpos - lpos, r);
+	}
+	
+	// A rope node at 'offset' over a, the taint of [0, split) relative to offset, and b, the taint after it relative to split
+	private static TaintSet node(int offset, TaintSet a, int split, TaintSet b) {
+		TaintSet set = new TaintSet(offset, (int) Math.min((long) split + b.getLastTaint(), Integer.MAX_VALUE));
+		set.forms().starts = new int[]{0, split};
+		set.forms(chunkForm).chunks = new TaintSet[]{a, b};
+		set.forms().depth = Math.max(a.forms.depth, b.forms.depth) + 1;
+		return set;
+	}
+	
+	/**
+	 * The taint of 'set' (a rope) within [from, to), moved right by 'shift'
+	 * 
+	 * A range within one side is that side's slice. Otherwise the slices of the two sides are joined again, sharing whatever they cover whole
+	 */
+	
+	private static TaintSet sliceRope(TaintSet set, int from, int to, int shift) {
+		int left = set.offset;
+		int right = set.offset + set.forms.starts[1];
+		
+		if (to <= right) {
+			return slice(set.forms.chunks[0], from - left, to - left, from + shift);
+		} else if (from >= right) {
+			return slice(set.forms.chunks[1], from - right, to - right, from + shift);
+		}
+		
+		TaintSet a = slice(set.forms.chunks[0], from - left, right - left, 0);
+		TaintSet b = slice(set.forms.chunks[1], 0, to - right, 0);
+		
+		if (a == null) {
+			return b == null ? null : moved(b, right + shift);
+		} else if (b == null) {
+			return moved(a, from + shift);
+		}
+		
+		return moved(join(a, right - from, b, to - right), from + shift);
+	}
+	
+	// 'set' moved right by 'shift'
+	private static TaintSet moved(TaintSet set, int shift) {
+		if (shift == 0) {
+			return set;
+		} else if (set.forms.depth > 0) {
+			return node(set.offset + shift, set.forms.chunks[0], set.forms.starts[1], set.forms.chunks[1]);
+		}
+		
+		return slice(set, 0, Integer.MAX_VALUE, shift);
+	}
+	
+	/**
+	 * Whether the concatenation of a and b, neither of them a rope, is stored as one set rather than a rope over the two:
+	 * when it spans at most ropesize chars, or when both are lists that together are no larger than a ropesize bitmap
+	 * (or fit in an interval list)
+	 */
+	
+	private static boolean mergeable(TaintSet a, int lena, TaintSet b, int lenb) {
+		int ropelimit = ropesize;
+		int runlimit = maxIntervals;
+		
+		return (long) lena - a.getFirstTaint() + Math.min(b.getLastTaint(), lenb) <= ropelimit
+			|| (a.runsOnly() && b.runsOnly() && a.runBounds() + b.runBounds() <= Math.max((runlimit + 1) << 1, ropelimit >> (cellbits - 1)));
+	}
+	
+	/**
+	 * Whether the concatenation of b1 and b2, both tainted, is coarse: when either is, or in coarse mode when it spans
+	 * at least coarsesize chars, needs bits and is bounded
+	 */
+	
+	private static boolean coarsens(TaintSet b1, int len1, TaintSet b2, int len2) {
+		if (b1.forms.blockbits != null || b2.forms.blockbits != null) {
+			return true;
+		} else if (coarsegrain == 0 || (b1.runsOnly() && b2.runsOnly())) {
+			return false;
+		}
+		
+		long last = (long) len1 + Math.min(b2.getLastTaint(), len2);
+		return last < Integer.MAX_VALUE && last - b1.getFirstTaint() >= coarsesize;
+	}
+	
+	/**
+	 * Concatenation of two strings whose TaintSet objects are b1 and b2, as a coarse set with the larger of their block sizes (coarsegrain if neither is coarse).
+	 * b2's blocks may straddle the blocks of the result; every block they touch is tainted
+	 * 
+	 * When destructive (capacity > 0), a coarse b1 grows in place. An unbounded b2 has no blocks to keep: then both are made exact again
+	 */
+	
+	private static TaintSet concatBlocks(TaintSet b1, int len1, TaintSet b2, int len2, int capacity) {
+		long last = (long) len1 + Math.min(b2.getLastTaint(), len2);
+		
+		if (last >= Integer.MAX_VALUE) {
+			return generate(exact(b1), len1, exact(b2), len2, 0);
+		}
+		
+		int grain = Math.max(b1.forms.blocksize, b2.forms.blocksize);
+		grain = grain == 0 ? coarsegrain : grain;
+		
+		if (capacity > 0 && b1.forms.blocksize == grain && b1.getLastTaint() <= len1) {
+			int cells = numCells((int) ((last - b1.offset + grain - 1) / grain));
+			
+			if (cells > b1.forms.blockbits.length) {
+				b1.forms().blockbits = Arrays.copyOf(b1.forms.blockbits, Math.max(cells, b1.forms.blockbits.length << 1));
+			}
+			
+			b1.length = (int) last - b1.offset;
+			b1.addBlocks(b2, 0, len2, len1);
+			return b1;
+		}
+		
+		TaintSet set = blocks(b1.getFirstTaint(), (int) last, grain);
+		set.addBlocks(b1, 0, len1, 0);
+		set.addBlocks(b2, 0, len2, len1);
+		return set;
+	}
+	
+	// set union (b + offset), where b is the taint of a string of length len, and either is coarse
+	private static TaintSet unionBlocks(TaintSet set, int offset, TaintSet b, int len) {
+		long last = Math.max(set.getLastTaint(), (long) offset + Math.min(b.getLastTaint(), len));
+		
+		if (last >= Integer.MAX_VALUE) {
+			return unionHybrid(exact(set), offset, exact(b), len);
+		}
+		
+		TaintSet union = blocks(Math.min(set.getFirstTaint(), offset + b.getFirstTaint()), (int) last, Math.max(set.forms.blocksize, b.forms.blocksize));
+		union.addBlocks(set, 0, Integer.MAX_VALUE, 0);
+		union.addBlocks(b, 0, len, offset);
+		return union;
+	}
+	
+	/**
+	 * The taint of coarse 'set' within [from, to), moved right by 'shift': coarse again with the same block size,
+	 * unless it's shorter than coarsesize: then exact, each tainted block whole
+	 */
+	
+	private static TaintSet sliceBlocks(TaintSet set, int from, int to, int shift) {
+		if (to - from < coarsesize) {
+			return exact(set, from, to, shift);
+		}
+		
+		TaintSet slice = blocks(from + shift, to + shift, set.forms.blocksize);
+		slice.addBlocks(set, from, to, shift);
+		int n = slice.blockCount();
+		return firstBit(slice.forms.blockbits, 0, n) < n ? slice : null;
+	}
+	
+	// A coarse set over [first, last) of its string, with no block tainted yet; blocks are aligned on multiples of 'grain'
+	private static TaintSet blocks(int first, int last, int grain) {
+		int offset = first - first % grain;
+		TaintSet set = new TaintSet(offset, last - offset);
+		set.forms().blocksize = grain;
+		set.forms(coarseForm).blockbits = new long[numCells(set.blockCount())];
+		return set;
+	}
+	
+	// The taint coarse 'set' stands for, each tainted block whole, as an exact set; any other set as it is
+	private static TaintSet exact(TaintSet set) {
+		return set == null || set.forms.blockbits == null ? set : exact(set, set.offset, set.getLastTaint(), 0);
+	}
+	
+	// exact() of the chars [from, to) of coarse 'set', moved right by 'shift'
+	private static TaintSet exact(TaintSet set, int from, int to, int shift) {
+		int n = (int) (((long) to - set.offset + set.forms.blocksize - 1) / set.forms.blocksize);
+		int[] runs = new int[8];
+		int count = 0;
+		
+		for (int i = firstBit(set.forms.blockbits, (from - set.offset) / set.forms.blocksize, n), j; i < n; i = firstBit(set.forms.blockbits, j, n)) {
+			for (j = i + 1; j < n && set.blockAt(j); j++) {
+			}
+			
+			if (count == runs.length) {
+				runs = Arrays.copyOf(runs, count << 1);
+			}
+			
+			runs[count++] = Math.max(set.offset + i * set.forms.blocksize, from) + shift;
+			runs[count++] = (int) Math.min((long) set.offset + (long) j * set.forms.blocksize, to) + shift;
+		}
+		
+		return pack(runs, count);
+	}
+	
+	/**
+	 * Marks the blocks of this coarse set that hold the taint of 'src' within [from, to), moved right by 'shift'
+	 * Each tainted block of a coarse src taints every block it overlaps; for an exact src, a word of taint is read at a time
+	 */
+	
+	private void addBlocks(TaintSet src, int from, int to, int shift) {
+		from = Math.max(from, src.getFirstTaint());
+		to = Math.min(to, src.getLastTaint());
+		
+		if (src.forms.blockbits != null) {
+			int n = src.blockCount();
+			
+			for (int i = firstBit(src.forms.blockbits, (from - src.offset) / src.forms.blocksize, n); i < n; i = firstBit(src.forms.blockbits, i + 1, n)) {
+				int start = Math.max(src.offset + i * src.forms.blocksize, from);
+				int end = (int) Math.min((long) src.offset + (long) (i + 1) * src.forms.blocksize, to);
+				
+				if (start >= end) {
+					break;
+				}
+				
+				taintBlocks(start + shift, end + shift);
+			}
+			
+			return;
+		}
+		
+		for (int position = from; position < to; position += cellsize) {
+			long word = src.word(position, Math.min(cellsize, to - position));
+			
+			while (word != 0) {
+				int tainted = position + Long.numberOfLeadingZeros(word) + shift;
+				int next = offset + ((tainted - offset) / forms.blocksize + 1) * forms.blocksize - shift - position; // the next block, relative to position
+				taintBlocks(tainted, tainted + 1);
+				word &= next >= cellsize ? 0 : ~head(next);
+			}
+		}
+	}
+	
+	// Marks the blocks holding chars [start, end) of a coarse set's string
+	private void taintBlocks(int start, int end) {
+		int first = (start - offset) / forms.blocksize;
+		int last = (end - 1 - offset) / forms.blocksize;
+		
+		for (int i = first >> cellbits; i <= last >> cellbits; i++) {
+			long mask = ~0L;
+			
+			if (i == first >> cellbits) {
+				mask &= ~0L >>> (first & cellmax);
+			}
+			
+			if (i == last >> cellbits) {
+				mask &= head((last & cellmax) + 1);
+			}
+			
+			forms.blockbits[i] |= mask;
+		}
+	}
+	
+	// Whether block i of a coarse set is tainted
+	private boolean blockAt(int i) {
+		return (forms.blockbits[i >> cellbits] & (0x8000000000000000L >>> (i & cellmax))) != 0;
+	}
+	
+	// Number of blocks of a coarse set
+	private int blockCount() {
+		return (int) (((long) length + forms.blocksize - 1) / forms.blocksize);
+	}
+	
+	/**
+	 * Produce the resultant of concatenating strings S1 and S2
+	 * whose TaintSet objects are b1 and b2
+	 * 
+	 * It creates a single interval (singleInterval()) if possible.
+	 * Otherwise it creates a new bitset and populates it using b1 and b2
+	 * 
+	 * Returns null if both sets are empty
+	 * 
+	 * In lazy mode (setLazyDepth()) nothing is computed yet: the result is a placeholder that carries out the concatenation
+	 * when it's first read, and may turn out to have no taint
+	 * 
+	 * @param b1 TaintSet object from the first string
+	 * @param len1 Length of the first string
+	 * @param b2 TaintSet object from the second string
+	 * @return resultant TaintSet, null if no taint
+	 */
+	
+	public static TaintSet generate(final TaintSet b1, int len1, final TaintSet b2, int len2) {
+		if (hasLabels(b1) || hasLabels(b2)) {
+			return concatLabelled(b1, len1, b2, len2);
+		}
+		
+		return representation.concat(b1, len1, b2, len2);
+	}
+	
+	public static TaintSet generate(final TaintSet b1, int len1, final TaintSet b2) {
+		return generate(b1, len1, b2, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Used to substring a string whose TaintSet is 'set'. The substring is [beginIndex, endIndex)
+	 * Deferred in lazy mode, like concatenation
+	 * @param set
+	 * @param beginIndex
+	 * @param endIndex
+	 * @return
+	 */
+	public static TaintSet generate(TaintSet set, int beginIndex, int endIndex) {
+		if (hasLabels(set)) {
+			return substringLabelled(set, beginIndex, endIndex);
+		}
+		
+		return representation.substring(set, beginIndex, endIndex);
+	}
+	
+	// generate(b1, len1, b2, len2), carried out now
+	private static TaintSet concat(TaintSet b1, int len1, TaintSet b2, int len2) {
+		b1 = computed(b1);
+		b2 = computed(b2);
+		
+		if (b1 != null && b2 != null && !coarsens(b1, len1, b2, len2) && (b1.forms.depth > 0 || b2.forms.depth > 0 || !mergeable(b1, len1, b2, len2))) {
+			return concatRope(b1, len1, b2, len2);
+		}
+		
+		return generate(b1, len1, b2, len2, 0);
+	}
+	
+	// generate(set, beginIndex, endIndex), carried out now
+	private static TaintSet substring(TaintSet set, int beginIndex, int endIndex) {
+		set = computed(set);
+		
+		if (set == null || set == allTainted) {
+			return set;
+		} else {
+			TaintSet slice = slice(set, beginIndex, endIndex, 0);
+			
+			if (slice != null) {
+				slice = normalize(slice);
+			}
+			
+			// fully tainted slices
+			if (slice != null && slice.offset == 0 && slice.length >= endIndex - beginIndex && slice.singleInterval()) {
+				return allTainted;
+			}
+			
+			return slice;
+		}
+	}
+	
+	/**
+	 * Produce a set according to 'taint', where the first element of 'taint'
+	 * corresponds to the 'beginIndex' character of the parent string, up to endIndex
+	 * 
+	 * @param taint boolean array whose values are true where the characters are tainted
+	 * @param beginIndex Index of the character of the parent string that taint[0] corresponds to
+	 * @param endIndex Index of the character of the parent string that is the exclusive end of all taints
+	 * @return resultant TaintSet, null if no taint
+	 */
+	
+	public static TaintSet generate(boolean[] taint, int beginIndex, int endIndex) {
+		return representation.generate(taint, beginIndex, endIndex);
+	}
+	
+	// generate(taint, beginIndex, endIndex) in the hybrid representation
+	private static TaintSet generateHybrid(boolean[] taint, int beginIndex, int endIndex) {
+		if (taint != null) {
+			TaintSet set = new TaintSet();
+			if (set.initializeTo(taint, beginIndex, endIndex)) {
+				return set;
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Produce a set completely from 'taint' (equivalent of a zero-offset taint array from v1)
+	 * @param taint Boolean array specifying which characters are tainted
+	 * @return resultant TaintSet, null if no taint
+	 */
+	
+	public static TaintSet generate(boolean[] taint) {
+		return generate(taint, 0, -1);
+	}
+	
+	/**
+	 * Produce a set where [0, len) of the parent string is tainted
+	 * @param len Length of the left-aligned taint
+	 * @return resultant TaintSet, null if no taint
+	 */
+	
+	public static TaintSet generate(int len) {
+		return generate(0, len);
+	}
+	
+	/**
+	 * Produce a set where [start, end) of the parent string is tainted
+	 * @param start Start of tainting: Values before this are untainted
+	 * @param end End of tainting: Values after and including this are untainted
+	 * @return resultant TaintSet, null if no taint
+	 */
+	
+	public static TaintSet generate(int start, int end) {
+		return start < end ? interval(start, end - start) : null;
+	}
+	
+	// Skip comparison if guaranteed start < end
+	public static TaintSet guardedGenerate(int start, int end) {
+		return interval(start, end - start);
+	}
+	
+	/*************************
+	 * Packed Intervals
+	 *************************/
+	
+	/**
+	 * Packs a single interval into a long, so that a string can keep the commonest taint without a TaintSet object:
+	 * the first tainted index in the high 32 bits and the number of tainted chars, always positive, in the low 32
+	 * @param set
+	 * @return the packed interval, 0 if <code>set</code> is null or isn't a single interval (or is lazy: packing isn't worth forcing it)
+	 */
+	
+	public static long packInterval(TaintSet set) {
+		if (set == null || set.pending != null || !set.singleInterval() || set.length <= 0) {
+			return 0;
+		}
+		
+		return pack(set.getFirstTaint(), set.length);
+	}
+	
+	/**
+	 * @param interval	a packed interval, or 0
+	 * @return the TaintSet of the interval, null if it's 0
+	 */
+	
+	public static TaintSet unpackInterval(long interval) {
+		if (interval == 0) {
+			return null;
+		}
+		
+		int start = (int) (interval >>> 32), length = (int) interval;
+		return start == 0 && length == Integer.MAX_VALUE ? allTainted : interval(start, length);
+	}
+	
+	/**
+	 * The packed counterpart of generate(TaintSet, int, int): the taint of [beginIndex, endIndex) of a string whose taint is <code>interval</code>
+	 * @param interval	a packed interval, 0 if no taint, or -1 if the taint can't be packed
+	 * @param beginIndex
+	 * @param endIndex
+	 * @return the packed taint of the substring, or -1 if <code>interval</code> is -1
+	 */
+	
+	public static long substringInterval(long interval, int beginIndex, int endIndex) {
+		if (interval <= 0) {
+			return interval;
+		}
+		
+		int start = (int) (interval >>> 32);
+		long last = start + (interval & 0xFFFFFFFFL);
+		int first = Math.max(start, beginIndex) - beginIndex;
+		int end = (int) (Math.min(last, endIndex) - beginIndex);
+		
+		if (first >= end) {
+			return 0;
+		}
+		
+		return first == 0 && end == endIndex - beginIndex ? pack(0, Integer.MAX_VALUE) : pack(first, end - first);
+	}
+	
+	/**
+	 * The packed counterpart of generate(TaintSet, int, TaintSet, int): the taint of the concatenation of strings of lengths
+	 * <code>len1</code> and <code>len2</code> whose taints are <code>interval1</code> and <code>interval2</code>
+	 * @param interval1	a packed interval, 0 if no taint, or -1 if the taint can't be packed
+	 * @param len1
+	 * @param interval2	as <code>interval1</code>
+	 * @param len2
+	 * @return the packed taint of the concatenation, or -1 if either can't be packed or the result isn't a single interval
+	 */
+	
+	public static long concatInterval(long interval1, int len1, long interval2, int len2) {
+		if (interval1 < 0 || interval2 < 0) {
+			return -1;
+		}
+		
+		int start1 = (int) (interval1 >>> 32), end1 = (int) Math.min(start1 + (interval1 & 0xFFFFFFFFL), len1);
+		int start2 = (int) (interval2 >>> 32), end2 = (int) Math.min(start2 + (interval2 & 0xFFFFFFFFL), len2);
+		
+		if (start2 >= end2) {
+			return start1 < end1 ? pack(start1, end1 - start1) : 0;
+		} else if (start1 >= end1) {
+			return pack(len1 + start2, end2 - start2);
+		}
+		
+		return end1 == len1 && start2 == 0 ? pack(start1, len1 + end2 - start1) : -1;
+	}
+	
+	/**
+	 * The packed counterpart of hasTaintBetween()
+	 * @param interval	a packed interval, or 0
+	 * @param start
+	 * @param end
+	 * @return whether any of [start, end) is in <code>interval</code>
+	 */
+	
+	public static boolean intervalHasTaint(long interval, int start, int end) {
+		long first = interval >>> 32;
+		return interval != 0 && start < end && first < end && start - first < (interval & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * @param interval	a packed interval, or 0
+	 * @param position
+	 * @return whether <code>position</code> is in <code>interval</code>
+	 */
+	
+	public static boolean intervalTaintedAt(long interval, int position) {
+		return intervalHasTaint(interval, position, position + 1);
+	}
+	
+	/**
+	 * The packed counterpart of taintedCount()
+	 * @param interval	a packed interval, or 0
+	 * @param len Length of the parent string
+	 * @return the number of chars of [0, len) in <code>interval</code>
+	 */
+	
+	public static int intervalTaintedCount(long interval, int len) {
+		long first = interval >>> 32;
+		return interval == 0 ? 0 : (int) Math.max(Math.min(first + (interval & 0xFFFFFFFFL), len) - first, 0);
+	}
+	
+	// append() of 'b', a single interval, when 'set' can take it as it is, so that builders appending the commonest taints make no
+	// TaintSet: when 'set' is null and the interval a shared one, when it's a single interval the string extends, or a bitmap with room. Null if it can't
+	private static TaintSet appendInterval(TaintSet set, int len1, TaintSet b, int len2, int capacity) {
+		int start = b.getFirstTaint();
+		int end = Math.min(b.getLastTaint(), len2);
+		
+		if (start >= end || (long) len1 + end > Integer.MAX_VALUE) {
+			return null;
+		}
+		
+		set = computed(set);
+		
+		if (set == null) {
+			return interval(len1 + start, end - start);
+		} else if (capacity > 0 && !set.frozen && set.getLastTaint() <= len1) {
+			if (start == 0 && set.singleInterval() && set.offset >= 0 && set.getLastTaint() == len1) {
+				set.length += end;
+				return set;
+			} else if (set.setInPlace(len1 + start, len1 + end)) {
+				return set;
+			}
+		}
+		
+		return null;
+	}
+	
+	// union() of 'b', a single interval, when 'set' can take it as it is, as with appendInterval(); null if it can't
+	private static TaintSet unionInterval(TaintSet set, int offset, TaintSet b, int len) {
+		int start = b.getFirstTaint();
+		int end = Math.min(b.getLastTaint(), len);
+		
+		if (start >= end || (long) offset + end > Integer.MAX_VALUE) {
+			return null;
+		}
+		
+		set = computed(set);
+		
+		if (set == null) {
+			return interval(offset + start, end - start);
+		} else if (set.singleInterval() && set.getFirstTaint() <= offset + start && offset + end <= set.getLastTaint()) {
+			return set;
+		} else if (!set.frozen && set.setInPlace(offset + start, offset + end)) {
+			return set;
+		}
+		
+		return null;
+	}
+	
+	// Whether 'b' is a single interval appendInterval() and unionInterval() can take: computed, and in the hybrid representation
+	private static boolean plainInterval(TaintSet b) {
+		return b != null && b.pending == null && representation == HYBRID && b.singleInterval() && b.length > 0;
+	}
+	
+	// Taints [first, last) of the string in place, if this is a bitmap on the heap that may be modified and has room for them; false if not
+	private boolean setInPlace(int first, int last) {
+		if (taintbits == null || forms != none || offset < 0 || first < offset || last > maxSize()) {
+			return false;
+		}
+		
+		if (last - offset > length) {
+			setUntainted(length, last - offset); // the bitmap may hold bits past the taint from before it was clipped
+			length = last - offset;
+		}
+		
+		setTainted(first - offset, last - offset);
+		return true;
+	}
+	
+	// [start, start + length), length > 0, packed
+	private static long pack(int start, int length) {
+		return (long) start << 32 | length;
+	}
+	
+	// FOR TESTING -------------------------------------------
+	
+	public void printTaintBits() {
+		force();
+		System.out.printf("offset = %d, length = %d\n", offset, length);
+		if (runs != null) {
+			for(int i = 0; i < runs.length; i += 2) {
+				System.out.printf("\t[%d, %d)\n", runs[i], runs[i + 1]);
+			}
+		} else if (forms.form != null) {
+			forms.form.print(this);
+		} else if (inlinebits != 0) {
+			System.out.printf("\tinline: %s\n", Long.toBinaryString(inlinebits));
+		} else if (taintbits != null) {
+			int cells = forms.bitbuffer != null ? forms.bitbuffer.capacity() : taintbits.length;
+			
+			for(int i = 0; i < cells; i++) {
+				System.out.printf("\t%3d: %s%s\n", i, Long.toBinaryString(cellAt(i)), forms.bitbuffer != null ? " (off heap)" : "");
+			}
+		}
+	}
+	
+	public String toString(int len) {
+		boolean[] taintarr = getTaintArray(len);
+		char[] taintstr = new char[len];
+		for(int i = 0; i < len; i++) {
+			taintstr[i] = taintarr[i] ? '1' : '0';
+		}
+		return new String(taintstr);
+	}
+	
+	public String toString() {
+		force();
+		return toString(length + getFirstTaint());
+	}
+	
+	public static boolean[] getTaintArray(TaintSet set, int len) {
+		return set == null ? new boolean[len] : set.getTaintArray(len);
+	}
+	
+	// END FOR TESTING -------------------------------------------
+
+	/**
+	 * Returns a zero-offset boolean array whose values map each character of the parent string, by index, to whether it is tainted
+	 * @param len Length of the parent string, and thus the length of the resultant boolean taint array
+	 * @return a zero-offset boolean array whose values map each character of the parent string, by index, to whether it is tainted
+	 */
+	
+	public boolean[] getTaintArray(int len) {
+		boolean[] taintarr = new boolean[len];
+		getTaintArray(0, len, taintarr, 0);
+		return taintarr;
+	}
+	
+	/**
+	 * Writes whether each of chars [start, end) of the parent string is tainted to taintarr[index ...], so no temporary array is needed.
+	 * Intervals and runs are filled whole, and bitmaps unpacked a word at a time, rather than testing each char
+	 * @param start
+	 * @param end
+	 * @param taintarr the array to write: [index, index + end - start) is overwritten, untainted chars included
+	 * @param index where in taintarr char start goes
+	 */
+	
+	public void getTaintArray(int start, int end, boolean[] taintarr, int index) {
+		int from = Math.max(start, getFirstTaint());
+		int to = Math.min(end, getLastTaint());
+		
+		Arrays.fill(taintarr, index, index + end - start, false);
+		
+		if (from >= to) {
+			return;
+		}
+		
+		int at = index - start;
+		
+		if (runs != null) {
+			for (int i = findRun(runs, from - offset); i < runs.length && offset + runs[i] < to; i += 2) {
+				Arrays.fill(taintarr, at + Math.max(offset + runs[i], from), at + Math.min(offset + runs[i + 1], to), true);
+			}
+		} else if (forms.form != null) {
+			forms.form.getTaintArray(this, from, to, taintarr, at);
+		} else if (runsOnly()) {
+			Arrays.fill(taintarr, at + from, at + to, true);
+		} else {
+			expandWords(from, to, taintarr, at);
+		}
+	}
+	
+	// getTaintArray() of chars [from, to) of the parent string, which lie in the taint, into taintarr[at + from, at + to), a word at a time
+	private void expandWords(int from, int to, boolean[] taintarr, int at) {
+		for (int position = from; position < to; position += cellsize) {
+			int count = Math.min(cellsize, to - position);
+			long word = word(position, count);
+			
+			if (word == head(count)) {
+				Arrays.fill(taintarr, at + position, at + position + count, true);
+				continue;
+			}
+			
+			for (; word != 0; word &= word - 1) {
+				taintarr[at + position + cellmax - Long.numberOfTrailingZeros(word)] = true;
+			}
+		}
+	}
+	
+	/**
+	 * The first tainted char at or after 'from', found without expanding the set: a binary search of a list, or a scan of a bitmap a word at a time
+	 * @param from
+	 * @return index of the first tainted char at or after <code>from</code>; -1 if there is none
+	 */
+	
+	public int nextTainted(int from) {
+		int position = Math.max(from, getFirstTaint());
+		int last = getLastTaint();
+		
+		if (position >= last) {
+			return -1;
+		} else if (runs != null) {
+			int i = findRun(runs, position - offset);
+			position = i < runs.length ? Math.max(offset + runs[i], position) : last;
+		} else if (forms.form != null) {
+			return forms.form.nextTainted(this, position, last);
+		} else if (!runsOnly()) {
+			return scanTainted(position, last);
+		}
+		
+		return position < last ? position : -1;
+	}
+	
+	// nextTainted() from 'position', which lies in the taint, and before 'last', getLastTaint(), a word at a time
+	private int scanTainted(int position, int last) {
+		int end = taintEnd(), begin = position;
+		
+		for (; position < end; position = (int) Math.min((long) position + cellsize, end)) {
+			long word = word(position, (int) Math.min(cellsize, (long) end - position));
+			
+			if (word != 0) {
+				return position + Long.numberOfLeadingZeros(word);
+			}
+		}
+		
+		// past taintEnd(), untainted or tainted for good
+		return end < last && word(end, 1) != 0 ? Math.max(end, begin) : -1;
+	}
+	
+	/**
+	 * The first untainted char at or after 'from', found as nextTainted() is
+	 * @param from
+	 * @return index of the first untainted char at or after <code>from</code>; Integer.MAX_VALUE if every char from there on is tainted
+	 */
+	
+	public int nextUntainted(int from) {
+		int position = from;
+		int last = getLastTaint();
+		
+		if (position < getFirstTaint() || position >= last) {
+			return position;
+		} else if (runs != null) {
+			int i = findRun(runs, position - offset);
+			
+			if (i < runs.length && offset + runs[i] <= position) {
+				position = offset + runs[i + 1];
+			}
+		} else if (forms.form != null) {
+			return forms.form.nextUntainted(this, position, last);
+		} else if (!runsOnly()) {
+			return scanUntainted(position, last);
+		} else {
+			position = last;
+		}
+		
+		return Math.min(position, last);
+	}
+	
+	// nextUntainted() from 'position', which lies in the taint, and before 'last', getLastTaint(), a word at a time
+	private int scanUntainted(int position, int last) {
+		int end = taintEnd(), begin = position;
+		
+		for (; position < end; position = (int) Math.min((long) position + cellsize, end)) {
+			int count = (int) Math.min(cellsize, (long) end - position);
+			long word = ~word(position, count) & head(count);
+			
+			if (word != 0) {
+				return position + Long.numberOfLeadingZeros(word);
+			}
+		}
+		
+		// past taintEnd(), untainted or tainted for good
+		return Math.min(end < last && word(end, 1) != 0 ? last : Math.max(end, begin), last);
+	}
+	
+	/**
+	 * The number of tainted chars in [start, end) of the parent string: a sum over a list, and for a bitmap a Long.bitCount() of each word,
+	 * or, once it's summarized (see setSummarySize()), the difference of two ranks
+	 * @param start
+	 * @param end
+	 * @return number of tainted chars in [start, end)
+	 */
+	
+	public int countTainted(int start, int end) {
+		int from = Math.max(start, getFirstTaint());
+		int to = Math.min(end, getLastTaint());
+		
+		if (from >= to) {
+			return 0;
+		} else if (runs != null) {
+			int count = 0;
+			
+			for (int i = findRun(runs, from - offset); i < runs.length && offset + runs[i] < to; i += 2) {
+				count += Math.min(offset + runs[i + 1], to) - Math.max(offset + runs[i], from);
+			}
+			
+			return count;
+		} else if (forms.form != null) {
+			return forms.form.countTainted(this, from, to);
+		} else if (runsOnly()) {
+			return to - from;
+		} else if (forms.summary != null) {
+			Summary summary = summary();
+			return rank(summary, to - offset) - rank(summary, from - offset);
+		}
+		
+		return countWords(from, to);
+	}
+	
+	// countTainted() of chars [from, to) of the parent string, which lie in the taint, a Long.bitCount() of each word
+	private int countWords(int from, int to) {
+		int count = 0;
+		
+		for (int position = from; position < to; position += cellsize) {
+			count += Long.bitCount(word(position, (int) Math.min(cellsize, (long) to - position)));
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * @param len Length of the parent string
+	 * @return the number of tainted chars of the parent string: countTainted(0, len)
+	 */
+	
+	public int taintedCount(int len) {
+		return countTainted(0, len);
+	}
+	
+	/**
+	 * The number of tainted runs of the parent string, each a maximal stretch of tainted chars: 1 for a single interval.
+	 * A bitmap is counted a word at a time, by the Long.bitCount() of its run starts, the set bits whose previous char (the next higher bit,
+	 * or the lowest bit of the word before) is clear
+	 * @param len Length of the parent string
+	 * @return the number of tainted runs in [0, len)
+	 */
+	
+	public int runCount(int len) {
+		int from = getFirstTaint();
+		int to = Math.min(len, getLastTaint());
+		
+		if (from >= to) {
+			return 0;
+		} else if (runs != null) {
+			int i = findRun(runs, to - offset - 1);
+			return ((i < runs.length && offset + runs[i] < to ? i + 2 : i) - findRun(runs, from - offset)) >> 1;
+		} else if (runsOnly() && forms.holes == null && forms.positions == null) {
+			return 1;
+		}
+		
+		int count = 0;
+		long carry = 0; // whether the char before the word is tainted, as its top bit
+		
+		for (int position = from; position < to; position += cellsize) {
+			int n = (int) Math.min(cellsize, (long) to - position);
+			long word = word(position, n);
+			count += Long.bitCount(word & ~(word >>> 1 | carry));
+			carry = word << (n - 1) & 0x8000000000000000L;
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * taintedCount(), 0 if <code>set</code> is null
+	 */
+	
+	public static int taintedCount(TaintSet set, int len) {
+		return set == null ? 0 : set.taintedCount(len);
+	}
+	
+	/**
+	 * runCount(), 0 if <code>set</code> is null
+	 */
+	
+	public static int runCount(TaintSet set, int len) {
+		return set == null ? 0 : set.runCount(len);
+	}
+	
+	/**
+	 * Writes the tainted runs of chars [start, end) of the parent string to runs[index ...] as pairs of bounds, [runs[index], runs[index + 1]) and so on,
+	 * stopping early if the array fills up: the next call can carry on from the end of the last run written
+	 * @param start
+	 * @param end
+	 * @param runs the array to write
+	 * @param index where in runs the first run goes
+	 * @return the number of runs written
+	 */
+	
+	public int getTaintedRuns(int start, int end, int[] runs, int index) {
+		int count = 0;
+		
+		for (int position = nextTainted(start); position >= 0 && position < end && index + 1 < runs.length; position = nextTainted(runs[index - 1])) {
+			runs[index++] = position;
+			runs[index++] = Math.min(nextUntainted(position), end);
+			count++;
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Walks the tainted runs of a string, a run at a time, without allocating: reset() it to a set, then call next() until it returns false,
+	 * reading each run's bounds from start() and end(). One cursor can be reused for any number of sets
+	 */
+	
+	public static final class RunCursor {
+		private TaintSet set;
+		private int limit; // length of the string
+		private int start, end; // the current run
+		
+		/**
+		 * Starts walking the runs of 'set' within a string of length 'len'
+		 * @param set the taint of the string, null if none
+		 * @param len
+		 * @return this cursor
+		 */
+		
+		public RunCursor reset(TaintSet set, int len) {
+			this.set = set;
+			this.limit = len;
+			this.start = this.end = 0;
+			return this;
+		}
+		
+		/**
+		 * Moves to the next tainted run
+		 * @return whether there is one
+		 */
+		
+		public boolean next() {
+			int position = set == null || end >= limit ? -1 : set.nextTainted(end);
+			
+			if (position < 0 || position >= limit) {
+				start = end = limit;
+				return false;
+			}
+			
+			start = position;
+			end = Math.min(set.nextUntainted(position), limit);
+			return true;
+		}
+		
+		/**
+		 * @return the first char of the current run
+		 */
+		
+		public int start() {
+			return start;
+		}
+		
+		/**
+		 * @return one past the last char of the current run
+		 */
+		
+		public int end() {
+			return end;
+		}
+	}
+	
+	/**
+	 * Structural equality: whether the two sets taint exactly the same chars, whatever their representations
+	 * Compared a word at a time; past taintEnd() both are untainted, or both tainted for good
+	 */
+	
+	public boolean equals(Object o) {
+		if (o == this) {
+			return true;
+		} else if (!(o instanceof TaintSet)) {
+			return false;
+		}
+		
+		TaintSet set = (TaintSet) o;
+		
+		if ((getLastTaint() == Integer.MAX_VALUE) != (set.getLastTaint() == Integer.MAX_VALUE)) {
+			return false;
+		}
+		
+		int end = Math.max(taintEnd(), set.taintEnd());
+		
+		for (long position = Math.min(getFirstTaint(), set.getFirstTaint()); position < end; position += cellsize) {
+			if (word((int) position, cellsize) != set.word((int) position, cellsize)) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Consistent with equals(): hashes each word of taint with its position, so equal sets hash alike whatever their representations.
+	 * Fully tainted words are left out for unbounded sets, since two equal ones may have their taintEnd() in different places
+	 */
+	
+	public int hashCode() {
+		boolean bounded = getLastTaint() < Integer.MAX_VALUE;
+		int end = taintEnd();
+		int hash = bounded ? 0 : 1;
+		
+		for (long position = getFirstTaint() & ~cellmax; position < end; position += cellsize) {
+			long word = word((int) position, cellsize);
+			
+			if (word != 0 && (bounded || word != ~0L)) {
+				hash = 31 * hash + ((int) (position >> cellbits) ^ (int) (word ^ word >>> 32));
+			}
+		}
+		
+		return hash;
+	}
+	
+	// getLastTaint(), unless the taint is unbounded: then where its last run starts, since everything after is tainted
+	private int taintEnd() {
+		return taintEnd(0);
+	}
+	
+	// taintEnd() of the set moved right by 'shift', in its own coordinates: a chunk is unbounded once its end saturates where it lies
+	private int taintEnd(int shift) {
+		int last = getLastTaint();
+		
+		if (last < Integer.MAX_VALUE - shift) {
+			return last;
+		} else if (runs != null) {
+			return offset + runs[runs.length - 2];
+		} else if (forms.form != null) {
+			return forms.form.taintEnd(this, shift, last);
+		}
+		
+		return singleInterval() ? getFirstTaint() : last;
+	}
+	
+	public static TaintSet makeCopy(TaintSet set) {
+		set = computed(set);
+		
+		if (set == null) {
+			return null;
+		} else {
+			if (set.forms.flags != null) {
+				// flags are never modified in place: the copy is made in the hybrid representation
+				return generateHybrid(set.forms.flags, 0, -1);
+			} else if (set.offset < 0 || set.forms.bitbuffer != null) {
+				// assert: set.taintbits != null. The copy is a bitmap on the heap
+				return new TaintSet(set.getFirstTaint(), set.length, new long[numCells(set.length)]).fill(0, set);
+			} else if (set.forms.chunks != null) {
+				// chunks are shared but the tail, which the copy gets a copy of and owns, so 'set' keeps its own and is left as it is
+				TaintSet copy = new TaintSet(set.offset, set.length);
+				int last = set.forms.chunks.length - 1;
+				copy.forms(chunkForm).starts = set.forms.starts;
+				copy.forms.chunks = set.forms.chunks.clone();
+				copy.forms.chunks[last] = makeCopy(set.forms.chunks[last]);
+				copy.forms.ownsTail = true;
+				copy.forms.depth = set.forms.depth;
+				return copy;
+			} else {
+				TaintSet copy = new TaintSet(set.offset, set.length, set.taintbits == null ? null : set.taintbits.clone());
+				copy.runs = set.runs; // interval, complement and position lists are never modified in place
+				copy.inlinebits = set.inlinebits;
+				
+				if (set.forms != none) {
+					copy.forms = set.forms.copy();
+				}
+				
+				return copy;
+			}
+		}
+	}
+	
+	/**
+	 * Marks <code>set</code> as reachable from a String, so it is never modified in place again:
+	 * builders that still hold it copy it the next time they append, union or set
+	 * @param set
+	 * @return set
+	 */
+	
+	public static TaintSet freeze(TaintSet set) {
+		return freeze(set, true);
+	}
+	
+	/**
+	 * freeze(). If 'handoff', the set is being handed to a String and no thread reads it yet: the first time, its large bitmaps
+	 * are moved off the heap and the rest interned, if enabled
+	 * @return set, or an off-heap equivalent of it
+	 */
+	
+	private static TaintSet freeze(TaintSet set, boolean handoff) {
+		// a set frozen already may be read by other threads, so is left as it is
+		if (set != null && !set.frozen) {
+			set.frozen = true;
+			
+			if (set.forms.chunks != null) {
+				set.forms.ownsTail = false;
+				freezeChunks(set, set.length);
+			} else {
+				summarize(set, set.length);
+			}
+			
+			if (handoff) {
+				if (offheapsize < Integer.MAX_VALUE) {
+					set = moveOffHeap(set);
+				}
+				
+				if (interning) {
+					internBits(set);
+				}
+			}
+		}
+		
+		return set;
+	}
+	
+	/**
+	 * 'set' with its bitmaps, or those of its chunks, of at least offheapsize chars moved to a direct buffer, so large taints
+	 * stay out of the garbage collector's way. The bitmaps of a chunked set share one buffer, each chunk a slice of it, so a large document costs one
+	 * allocation and one cleaner rather than one per chunk. A buffer is freed by its cleaner once no set references it: frozen bitmaps are shared,
+	 * so none is freed explicitly. The bitmaps stay on the heap if moving them would take the buffers not yet collected over offheapbudget,
+	 * or if the buffer can't be allocated
+	 * 
+	 * Chunks may be shared with sets other threads are reading, so the sets that change are new ones
+	 * @return set, or a frozen copy of it that's off the heap
+	 */
+	
+	private static TaintSet moveOffHeap(TaintSet set) {
+		int size = offheapsize;
+		long cells = offHeapCells(set, size);
+		
+		if (cells == 0 || cells > Integer.MAX_VALUE >> 3) {
+			return set;
+		}
+		
+		int bytes = (int) cells << 3;
+		
+		if (!reserve(bytes)) {
+			return set;
+		}
+		
+		ByteBuffer direct;
+		
+		try {
+			direct = ByteBuffer.allocateDirect(bytes);
+		} catch (OutOfMemoryError e) {
+			// out of direct memory: the set is as good on the heap
+			reserve(-bytes);
+			return set;
+		}
+		
+		track(direct, bytes);
+		return moveOffHeap(set, direct.order(ByteOrder.nativeOrder()).asLongBuffer(), size);
+	}
+	
+	// The number of cells of the bitmaps of 'set', or of its chunks, that are at least 'size' chars and so move off the heap
+	private static long offHeapCells(TaintSet set, int size) {
+		if (set.forms.chunks != null) {
+			long cells = 0;
+			
+			for (int i = 0; i < set.forms.chunks.length; i++) {
+				cells += offHeapCells(set.forms.chunks[i], size);
+			}
+			
+			return cells;
+		} else if (set.taintbits == null || set.forms.bitbuffer != null || set.offset < 0 || (long) set.taintbits.length << cellbits < size) {
+			return 0;
+		}
+		
+		return set.taintbits.length;
+	}
+	
+	// moveOffHeap(): the bitmaps offHeapCells() counts are copied, in order, into the rest of 'buffer', each to a slice of its own
+	private static TaintSet moveOffHeap(TaintSet set, LongBuffer buffer, int size) {
+		if (set.forms.chunks != null) {
+			TaintSet[] chunks = null;
+			
+			for (int i = 0; i < set.forms.chunks.length; i++) {
+				TaintSet chunk = moveOffHeap(set.forms.chunks[i], buffer, size);
+				
+				if (chunk != set.forms.chunks[i]) {
+					if (chunks == null) {
+						chunks = set.forms.chunks.clone();
+					}
+					
+					chunks[i] = chunk;
+				}
+			}
+			
+			if (chunks == null) {
+				return set;
+			}
+			
+			TaintSet moved = new TaintSet(set.offset, set.length);
+			moved.forms().starts = set.forms.starts;
+			moved.forms(chunkForm).chunks = chunks;
+			moved.forms().depth = set.forms.depth;
+			moved.frozen = true;
+			return moved;
+		} else if (offHeapCells(set, size) == 0) {
+			return set;
+		}
+		
+		buffer.limit(buffer.position() + set.taintbits.length);
+		LongBuffer bits = buffer.slice();
+		bits.put(set.taintbits);
+		buffer.position(buffer.limit());
+		buffer.limit(buffer.capacity());
+		
+		TaintSet moved = new TaintSet(set.offset, set.length, offheap);
+		moved.forms().bitbuffer = bits;
+		moved.forms().summary = set.forms.summary;
+		moved.frozen = true;
+		return moved;
+	}
+	
+	// Counts 'bytes' more of direct buffers in use (less, if negative), unless that would go over offheapbudget
+	private static synchronized boolean reserve(long bytes) {
+		release();
+		
+		if (bytes > 0 && offheapbytes + bytes > offheapbudget) {
+			return false;
+		}
+		
+		offheapbytes += bytes;
+		return true;
+	}
+	
+	// Keeps count of 'buffer' until it's collected
+	private static synchronized void track(ByteBuffer buffer, long bytes) {
+		Released ref = new Released(buffer, bytes);
+		offheapbuffers++;
+		ref.next = released;
+		
+		if (released != null) {
+			released.prev = ref;
+		}
+		
+		released = ref;
+	}
+	
+	// Gives back the bytes of the buffers that were collected
+	private static void release() {
+		for (Object polled; (polled = freed.poll()) != null; ) {
+			Released ref = (Released) polled;
+			offheapbytes -= ref.bytes;
+			offheapbuffers--;
+			
+			if (ref.prev != null) {
+				ref.prev.next = ref.next;
+			} else {
+				released = ref.next;
+			}
+			
+			if (ref.next != null) {
+				ref.next.prev = ref.prev;
+			}
+		}
+	}
+	
+	// Marks the chunks of 'set', a document of 'size' chars, frozen too: once its tail isn't owned, none is modified in place, so their bitmaps are summarized
+	private static void freezeChunks(TaintSet set, int size) {
+		for (int i = 0; i < set.forms.chunks.length; i++) {
+			TaintSet chunk = set.forms.chunks[i];
+			
+			if (!chunk.frozen) {
+				chunk.frozen = true;
+				
+				if (chunk.forms.chunks != null) {
+					chunk.forms.ownsTail = false;
+					freezeChunks(chunk, size);
+				} else {
+					summarize(chunk, size);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Marks the bitmap of 'set' to be indexed (see Summary) if it's (a chunk of) a document of at least summarysize chars: a chunk of a large one is summarized
+	 * however long the chunk, as most are shorter than summarysize. Only called as the set is first frozen, so no other thread reads it yet; the index
+	 * itself is left to the first range query (see summary())
+	 */
+	
+	private static void summarize(TaintSet set, int size) {
+		if (set.taintbits != null && size >= summarysize && set.forms.summary == null) {
+			set.forms().summary = unbuilt;
+		}
+	}
+	
+	/**
+	 * The summary of this set, which has one, built the first time it's asked for. Threads may race to build it: each builds an equal one from the
+	 * frozen bitmap and the last store wins, and as a Summary's fields are final, a thread that sees the reference sees the whole of it
+	 */
+	
+	private Summary summary() {
+		Summary summary = forms.summary;
+		
+		if (summary == unbuilt) {
+			forms.summary = summary = new Summary(this);
+		}
+		
+		return summary;
+	}
+	
+	// Interns the bitmap of 'set', or of each of its chunks; a set sharing its parent's bitmap (negative offset) or off the heap is left alone
+	private static void internBits(TaintSet set) {
+		if (set.forms.chunks != null) {
+			for (int i = 0; i < set.forms.chunks.length; i++) {
+				internBits(set.forms.chunks[i]);
+			}
+		} else if (set.taintbits != null && set.forms.bitbuffer == null && set.offset >= 0) {
+			set.taintbits = intern(set.taintbits);
+		}
+	}
+	
+	/**
+	 * Hash-consing: the array in the table with the same contents as 'bits', or 'bits' itself, added to the table, if there's none.
+	 * Only bitmaps that are never modified in place again are interned; the table holds them weakly
+	 * @return	an array equal to 'bits'
+	 */
+	
+	private static synchronized long[] intern(long[] bits) {
+		expunge();
+		internlookups++;
+		int hash = Arrays.hashCode(bits);
+		int i = hash & (interned.length - 1);
+		
+		for (Interned entry = interned[i]; entry != null; entry = entry.next) {
+			long[] canonical = entry.get();
+			
+			if (entry.hash == hash && canonical != null && Arrays.equals(canonical, bits)) {
+				internhits++;
+				return canonical;
+			}
+		}
+		
+		interned[i] = new Interned(bits, hash, interned[i]);
+		
+		if (++internedcount > interned.length - (interned.length >> 2)) {
+			// over 3/4 full: double the table
+			Interned[] table = new Interned[interned.length << 1];
+			
+			for (Interned entry : interned) {
+				while (entry != null) {
+					Interned next = entry.next;
+					int j = entry.hash & (table.length - 1);
+					entry.next = table[j];
+					table[j] = entry;
+					entry = next;
+				}
+			}
+			
+			interned = table;
+		}
+		
+		return bits;
+	}
+	
+	// Unlinks the entries whose bitmaps were collected
+	private static void expunge() {
+		for (Object ref; (ref = collected.poll()) != null; ) {
+			Interned dead = (Interned) ref;
+			int i = dead.hash & (interned.length - 1);
+			
+			if (interned[i] == dead) {
+				interned[i] = dead.next;
+				internedcount--;
+				continue;
+			}
+			
+			for (Interned entry = interned[i]; entry != null; entry = entry.next) {
+				if (entry.next == dead) {
+					entry.next = dead.next;
+					internedcount--;
+					break;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * A set standing for the result of 'op', which is carried out the first time the set is read (see compute())
+	 * The operands are frozen, since they have to hold the same taint until then
+	 */
+	
+	private static TaintSet defer(Deferred op) {
+		// strings may already be reading the operands, so their bitmaps are not swapped for interned ones
+		freeze(op.set1, false);
+		freeze(op.set2, false);
+		
+		TaintSet set = new TaintSet();
+		set.frozen = true;
+		set.pending = op;
+		return set;
+	}
+	
+	// How many deferred operations 'set' is the result of, one on top of another; 0 if it has been computed
+	private static int deferred(TaintSet set) {
+		Deferred op = set == null ? null : set.pending;
+		return op == null ? 0 : op.depth;
+	}
+	
+	// 'set' with its deferred operation carried out; null if that left no taint
+	private static TaintSet computed(TaintSet set) {
+		if (set != null) {
+			set.force();
+			
+			if (set.length == 0) {
+				return null;
+			}
+		}
+		
+		return set;
+	}
+	
+	// Carries out the deferred operation this set stands for, if any. Public methods that read the representation call this first
+	private void force() {
+		if (pending != null) {
+			compute();
+		}
+	}
+	
+	/**
+	 * Carries out the deferred operation this set stands for, and takes on the representation of its result, so the operands can be collected.
+	 * A result with no taint leaves an empty single interval.
+	 * 
+	 * Strings are read from many threads, so it's synchronized and clears 'pending' last: a thread that sees it null sees the whole result
+	 */
+	
+	private synchronized void compute() {
+		Deferred op = pending;
+		
+		if (op == null) {
+			return; // another thread carried it out
+		}
+		
+		TaintSet result = op.concat ? concat(op.set1, op.arg1, op.set2, op.arg2) : substring(op.set1, op.arg1, op.arg2);
+		
+		if (result != null) {
+			offset = result.offset;
+			length = result.length;
+			taintbits = result.taintbits;
+			inlinebits = result.inlinebits;
+			runs = result.runs;
+			forms = result.forms == none ? none : result.forms.copy();
+			frozen |= forms.flags != null;
+			
+			if (frozen) {
+				summarize(this, length);
+			}
+		}
+		
+		pending = null;
+	}
+	
+	/**
+	 * Calculate the maximum number of characters this object can track without reallocating the bitmap.
+	 * 
+	 * @return Integer.MAX_VALUE if this is a single interval, an interval list or chunked (infinitely expandable); otherwise offset + cellsize * taintbits.length
+	 */
+	
+	public int maxSize() {
+		force();
+		return taintbits == null ? Integer.MAX_VALUE : offset + cellsize * taintbits.length;
+	}
+	
+	/**
+	 * Ensures set.maxSize() >= size. If that's not the case, reallocates bitmap.
+	 * @param set
+	 * @param size
+	 * @return
+	 */
+	
+	public static TaintSet ensureCapacity(TaintSet set, int size) {
+		set = computed(set);
+		
+		if (set == null || size <= set.getLastTaint() || size <= set.maxSize()) {
+			return set;
+		}
+		
+		// bitmaps never grow past a chunk; generate() splits longer taints into chunks instead
+		size = Math.min(size, set.getFirstTaint() + chunksize);
+		
+		if (size <= set.maxSize()) {
+			return set;
+		}
+
+		TaintSet set2 = new TaintSet(set.offset, set.length, new long[numCells(size - set.offset)]);
+		set2.fill(0, set);
+
+		return set2;
+	}
+	
+	/**
+	 * Calls destructive version of generate for concat
+	 * 
+	 * The result is always bounded by len1 + len2 (never allTainted): builders call move() and replace()
+	 * without their length, so an unbounded taint could not be merged with a bitmap
+	 * @param b1
+	 * @param len1
+	 * @param b2
+	 * @param len2
+	 * @param capacity
+	 * @return
+	 */
+	
+	public static TaintSet append(TaintSet b1, int len1, final TaintSet b2, int len2, int capacity) {
+		if (hasLabels(b1) || hasLabels(b2)) {
+			return appendLabelled(b1, len1, b2, len2);
+		} else if (plainInterval(b2)) {
+			TaintSet appended = appendInterval(b1, len1, b2, len2, capacity);
+			
+			if (appended != null) {
+				if (adaptive) {
+					joins++; // as appendHybrid() does
+				}
+				
+				return appended;
+			}
+		}
+		
+		return representation.append(b1, len1, b2, len2, capacity);
+	}
+	
+	// append() in the hybrid representation
+	private static TaintSet appendHybrid(TaintSet b1, int len1, TaintSet b2, int len2, int capacity) {
+		if (adaptive) {
+			joins++;
+		}
+		
+		TaintSet set = generate(ensureCapacity(b1, capacity), len1, computed(b2), len2, capacity);
+		return set == allTainted ? new TaintSet(0, len1 + len2) : set;
+	}
+	
+	/**
+	 * Replaces the taint of [start, end) with <code>replacement</code>, the taint of a string of length <code>length</code>
+	 * @param set
+	 * @param start
+	 * @param end
+	 * @param length
+	 * @param replacement
+	 * @return
+	 */
+	
+	public static TaintSet replace(TaintSet set, int start, int end, int length, TaintSet replacement) {
+		if (hasLabels(set) || hasLabels(replacement)) {
+			return replaceLabelled(set, start, end, length, replacement);
+		}
+		
+		return representation.replace(set, start, end, length, replacement);
+	}
+	
+	// replace() in the hybrid representation
+	private static TaintSet replaceHybrid(TaintSet set, int start, int end, int length, TaintSet replacement) {
+		set = computed(set);
+		replacement = computed(replacement);
+		
+		if (end <= start) {
+			return set;
+		} else if (set == null) {
+			return replacement == null ? null : slice(replacement, 0, length, start);
+		} else {
+			// TODO: Hackish implementation. Concatenating substrings.
+			TaintSet replaced = generate(
+					concat(slice(set, 0, start, 0), start, replacement, length),
+					start + length,
+					slice(set, end, Integer.MAX_VALUE, 0),
+					Integer.MAX_VALUE,
+					0
+				);
+			
+			return replaced == null ? null : normalize(replaced);
+		}
+	}
+	
+	/**
+	 * Moves all taints starting at <code>index</code> by <code>size</code> (Used for buffer/builder.insert)
+	 * @param set
+	 * @param size
+	 * @param index	must be non-negative
+	 * @return
+	 */
+	
+	public static TaintSet move(TaintSet set, int size, int index) {
+		if (hasLabels(set)) {
+			return moveLabelled(set, size, index);
+		}
+		
+		return representation.move(set, size, index);
+	}
+	
+	// move() in the hybrid representation
+	private static TaintSet moveHybrid(TaintSet set, int size, int index) {
+		set = computed(set);
+		
+		
+		assert(index >= 0);
+		
+		if (set == null || index >= set.getLastTaint() || size == 0) {
+			return set;
+		} else if (index <= set.getFirstTaint()) {
+			// every taint moves
+			return slice(set, 0, Integer.MAX_VALUE, size);
+		} else {
+			// split: an interval becomes an interval list
+			return generate(slice(set, 0, index, 0), index + size, slice(set, index, Integer.MAX_VALUE, 0), Integer.MAX_VALUE, 0);
+		}
+	}
+	
+	public static TaintSet union(TaintSet set, int offset, TaintSet b) {
+		return union(set, offset, b, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Destructive: Sets set = Union(b + offset, set), where b is the taint of a string of length len (Used for buffer/builder.insert)
+	 * 
+	 * Range of where b fits is empty. A frozen set is left alone; the union is a new set
+	 * @param set
+	 * @param offset
+	 * @param b
+	 * @param len
+	 * @return
+	 */
+	
+	public static TaintSet union(TaintSet set, int offset, TaintSet b, int len) {
+		if (hasLabels(set) || hasLabels(b)) {
+			return unionLabelled(set, offset, b, len);
+		} else if (plainInterval(b)) {
+			TaintSet united = unionInterval(set, offset, b, len);
+			
+			if (united != null) {
+				return united;
+			}
+		}
+		
+		return representation.union(set, offset, b, len);
+	}
+	
+	// union() in the hybrid representation
+	private static TaintSet unionHybrid(TaintSet set, int offset, TaintSet b, int len) {
+		set = computed(set);
+		b = computed(b);
+		
+		if (b == null) {
+			return set;
+		} else if (set == null) {
+			return slice(b, 0, len, offset);
+		} else if (set.forms.blockbits != null || b.forms.blockbits != null) {
+			return unionBlocks(set, offset, b, len);
+		} else if (set.runsOnly() && b.runsOnly()) {
+			return unionRuns(set, offset, b, len);
+		}
+		
+		int blen = b.getLength(len);
+		
+		if (blen <= 0) {
+			return set;
+		}
+		
+		int first = b.getFirstTaint() + offset;
+		int last = first + blen;
+		
+		if (set.singleInterval() && set.getFirstTaint() <= first && last <= set.getLastTaint()) {
+			return set;
+		}
+		
+		int setfirst = set.getFirstTaint();
+		int setlast = set.getLastTaint();
+		
+		if (set.forms.chunks != null || b.forms.chunks != null || Math.max(last, setlast) - Math.min(first, setfirst) > chunksize) {
+			return unionChunks(set, offset, b, first, last);
+		}
+		
+		if (set.taintbits == null && Math.max(last, setlast) - Math.min(first, setfirst) <= cellsize) {
+			// both fit in a word: set becomes an inline bitmap
+			if (set.frozen) {
+				set = makeCopy(set);
+			}
+			
+			int start = Math.min(first, setfirst);
+			set.inlinebits = set.word(setfirst, setlast - setfirst) >>> (setfirst - start) | b.word(first - offset, blen) >>> (first - start);
+			set.runs = null;
+			set.forms = none;
+			set.offset = start;
+			set.length = Math.max(last, setlast) - start;
+			return set;
+		}
+		
+		if (set.taintbits != null && !set.frozen && set.offset >= 0 && first >= set.offset && last <= set.maxSize()) {
+			// b fits in set's bitmap
+			if (last > setlast) {
+				set.setUntainted(set.length, last - set.offset);
+				set.length = last - set.offset;
+			}
+		} else {
+			first = Math.min(first, setfirst);
+			last = Math.max(last, setlast);
+			set = new TaintSet(first, last - first, new long[numCells(last - first)]).fill(0, set);
+		}
+		
+		return set.fill(offset, b, blen);
+	}
+	
+	/**
+	 * Sets the char at <code>position</code> of the string whose TaintSet is <code>set</code> to value
+	 * 
+	 * A bitmap (inline or not) whose range covers the position is modified in place, expanding or contracting set.length if necessary;
+	 * untainting one of its ends normalizes it, so it may become a single interval. Other sets are rebuilt in place
+	 * 
+	 * Must call ensureCapacity before; otherwise a bitmap is rebuilt too. A frozen set is copied first
+	 * 
+	 * @param set
+	 * @param position
+	 * @param value
+	 * @return the modified set: set itself unless it was frozen or null
+	 */
+	
+	public static TaintSet set(TaintSet set, int position, boolean value) {
+		if (hasLabels(set)) {
+			return setLabelled(set, position, value);
+		}
+		
+		return representation.set(set, position, value);
+	}
+	
+	// set() in the hybrid representation
+	private static TaintSet setHybrid(TaintSet set, int position, boolean value) {
+		set = computed(set);
+		
+		if (set == null) {
+			return value ? interval(position, 1) : null;
+		} else if (set == allTainted || set.isTaintedAt(position) == value) {
+			return set;
+		} else if (set.forms.blockbits != null) {
+			// coarse: untainting a char may leave its block tainted, which is still conservative
+			return value ? unionHybrid(set, position, interval(0, 1), 1) : set;
+		} else if (set.frozen) {
+			set = makeCopy(set);
+		}
+		
+		if (set.forms.chunks != null) {
+			position -= set.offset;
+			int i = findChunk(set.forms.starts, position);
+			int last = set.forms.chunks.length - 1;
+			
+			// a chunk can grow up to a full chunk, but not into the next one
+			if (i >= 0 && (set.forms.chunks[i].taintbits != null || set.forms.chunks[i].inlinebits != 0) && position - set.forms.starts[i] < chunksize && (i == last || position < set.forms.starts[i + 1])) {
+				// other sets may share the chunk
+				TaintSet chunk = i == last && set.forms.ownsTail ? set.forms.chunks[i] : makeCopy(set.forms.chunks[i]);
+				
+				if (i == last) {
+					chunk = ensureCapacity(chunk, position - set.forms.starts[i] + 1);
+					set.forms().ownsTail = true;
+				}
+				
+				chunk = setHybrid(chunk, position - set.forms.starts[i], value);
+				
+				if (chunk != null) {
+					set.forms.chunks[i] = chunk;
+					set.length = set.forms.starts[last] + set.forms.chunks[last].getLastTaint();
+					return set;
+				}
+				
+				// nothing is left of the chunk: the set is rebuilt without it
+				set.forms().ownsTail = false;
+			}
+			
+			position += set.offset;
+		} else if ((set.taintbits != null || set.inlinebits != 0) && position >= set.getFirstTaint()) {
+			int bit = position - set.offset; // the bit offset within taintbits
+			int first = set.getFirstTaint() - set.offset;
+			
+			if (bit < (set.taintbits == null ? 1 : set.taintbits.length) * cellsize) {
+				if (value) {
+					if (bit - first >= set.length) {
+						set.setUntainted(first + set.length, bit); // the bitmap may hold bits past the taint from before it was clipped
+						set.length = bit - first + 1;
+					}
+					
+					set.add(bit);
+					return set;
+				}
+				
+				set.remove(bit);
+				
+				// what's left may be contiguous
+				return bit == first || bit - first + 1 == set.length ? normalize(set) : set;
+			}
+		}
+		
+		// not a bitmap covering the position: the taint is rebuilt around it
+		return value ? unionHybrid(set, position, interval(0, 1), Integer.MAX_VALUE) : replaceHybrid(set, position, position + 1, 1, null);
+	}
+	
+	/**
+	 * The taint of 'set' with every char labelled 'label', the source it came from (a query parameter, a cookie, ...).
+	 * The operations on sets carry labels along, and getLabelsAt() and getLabelsBetween() read them back;
+	 * a char tainted by strings of different labels has all of them
+	 * 
+	 * Unlabelled taint has the label UNLABELLED: label(set, UNLABELLED) drops the labels of 'set'
+	 * @param set
+	 * @param label between UNLABELLED and MAXLABEL
+	 * @return the labelled set, null if 'set' is
+	 */
+	
+	public static TaintSet label(TaintSet set, int label) {
+		assert(label >= UNLABELLED && label <= MAXLABEL);
+		
+		set = computed(set);
+		
+		if (set == null) {
+			return null;
+		} else if (set.forms.labels != null) {
+			// every layer together
+			TaintSet all = null;
+			
+			for (int i = 0; i < set.forms.layers.length; i++) {
+				all = union(all, 0, set.forms.layers[i], Integer.MAX_VALUE);
+			}
+			
+			set = all;
+		}
+		
+		return layered(new int[] { label }, new TaintSet[] { set });
+	}
+	
+	/**
+	 * @param position
+	 * @return the labels of the char at 'position' as a mask: bit l is set if it has label l; 0 if it's untainted
+	 */
+	
+	public int getLabelsAt(int position) {
+		return getLabelsBetween(position, position + 1);
+	}
+	
+	/**
+	 * @param start
+	 * @param end
+	 * @return the labels of the chars [start, end) as a mask: bit l is set if any has label l; 0 if none is tainted
+	 */
+	
+	public int getLabelsBetween(int start, int end) {
+		force();
+		
+		if (forms.labels == null) {
+			return hasTaintBetween(start, end) ? 1 << UNLABELLED : 0;
+		}
+		
+		int mask = 0;
+		
+		for (int i = 0; i < forms.labels.length; i++) {
+			if (forms.layers[i].hasTaintBetween(start, end)) {
+				mask |= 1 << forms.labels[i];
+			}
+		}
+		
+		return mask;
+	}
+	
+	// Whether 'set' has labels: the labelled operations below carry them through each layer. Deferred sets never have
+	private static boolean hasLabels(TaintSet set) {
+		return set != null && set.forms.labels != null;
+	}
+	
+	// generate(b1, len1, b2, len2), layer by layer
+	private static TaintSet concatLabelled(TaintSet b1, int len1, TaintSet b2, int len2) {
+		int[] labels = labelsOf(b1, b2);
+		TaintSet[] layers = new TaintSet[labels.length];
+		
+		for (int i = 0; i < labels.length; i++) {
+			layers[i] = generate(layer(b1, labels[i]), len1, layer(b2, labels[i]), len2);
+		}
+		
+		return layered(labels, layers);
+	}
+	
+	// generate(set, beginIndex, endIndex), layer by layer
+	private static TaintSet substringLabelled(TaintSet set, int beginIndex, int endIndex) {
+		TaintSet[] layers = new TaintSet[set.forms.labels.length];
+		
+		for (int i = 0; i < layers.length; i++) {
+			layers[i] = generate(set.forms.layers[i], beginIndex, endIndex);
+		}
+		
+		return layered(set.forms.labels, layers);
+	}
+	
+	// append(), layer by layer; the layers are frozen, so never in place
+	private static TaintSet appendLabelled(TaintSet b1, int len1, TaintSet b2, int len2) {
+		int[] labels = labelsOf(b1, b2);
+		TaintSet[] layers = new TaintSet[labels.length];
+		
+		for (int i = 0; i < labels.length; i++) {
+			layers[i] = append(layer(b1, labels[i]), len1, layer(b2, labels[i]), len2, 0);
+		}
+		
+		return layered(labels, layers);
+	}
+	
+	// replace(), layer by layer
+	private static TaintSet replaceLabelled(TaintSet set, int start, int end, int length, TaintSet replacement) {
+		int[] labels = labelsOf(set, replacement);
+		TaintSet[] layers = new TaintSet[labels.length];
+		
+		for (int i = 0; i < labels.length; i++) {
+			layers[i] = replace(layer(set, labels[i]), start, end, length, layer(replacement, labels[i]));
+		}
+		
+		return layered(labels, layers);
+	}
+	
+	// move(), layer by layer
+	private static TaintSet moveLabelled(TaintSet set, int size, int index) {
+		TaintSet[] layers = new TaintSet[set.forms.labels.length];
+		
+		for (int i = 0; i < layers.length; i++) {
+			layers[i] = move(set.forms.layers[i], size, index);
+		}
+		
+		return layered(set.forms.labels, layers);
+	}
+	
+	// union(), layer by layer
+	private static TaintSet unionLabelled(TaintSet set, int offset, TaintSet b, int len) {
+		int[] labels = labelsOf(set, b);
+		TaintSet[] layers = new TaintSet[labels.length];
+		
+		for (int i = 0; i < labels.length; i++) {
+			layers[i] = union(layer(set, labels[i]), offset, layer(b, labels[i]), len);
+		}
+		
+		return layered(labels, layers);
+	}
+	
+	// set(): a char newly tainted is UNLABELLED; one untainted loses all its labels
+	private static TaintSet setLabelled(TaintSet set, int position, boolean value) {
+		if (set.isTaintedAt(position) == value) {
+			return set;
+		} else if (value) {
+			return unionLabelled(set, position, interval(0, 1), 1);
+		}
+		
+		TaintSet[] layers = new TaintSet[set.forms.labels.length];
+		
+		for (int i = 0; i < layers.length; i++) {
+			layers[i] = set(set.forms.layers[i], position, false);
+		}
+		
+		return layered(set.forms.labels, layers);
+	}
+	
+	// The labels of 'set' as a mask, as in getLabelsBetween(), but whether or not each layer has taint
+	private static int labelMask(TaintSet set) {
+		if (set == null) {
+			return 0;
+		} else if (set.forms.labels == null) {
+			return 1 << UNLABELLED;
+		}
+		
+		int mask = 0;
+		
+		for (int i = 0; i < set.forms.labels.length; i++) {
+			mask |= 1 << set.forms.labels[i];
+		}
+		
+		return mask;
+	}
+	
+	// The taint of 'set' labelled 'label': null if it has none; an unlabelled set is all UNLABELLED
+	private static TaintSet layer(TaintSet set, int label) {
+		if (set == null) {
+			return null;
+		} else if (set.forms.labels == null) {
+			return label == UNLABELLED ? set : null;
+		}
+		
+		int i = Arrays.binarySearch(set.forms.labels, label);
+		return i < 0 ? null : set.forms.layers[i];
+	}
+	
+	// The sorted labels of b1 and b2 together (either may be null); unlabelled taint counts as UNLABELLED
+	private static int[] labelsOf(TaintSet b1, TaintSet b2) {
+		int mask = labelMask(b1) | labelMask(b2);
+		
+		int[] labels = new int[Integer.bitCount(mask)];
+		
+		for (int i = 0; i < labels.length; i++, mask &= mask - 1) {
+			labels[i] = Integer.numberOfTrailingZeros(mask);
+		}
+		
+		return labels;
+	}
+	
+	/**
+	 * The set whose taint labels[i] is layers[i], leaving out empty layers; layers are frozen, as other sets share them.
+	 * Plain taint when all of it is UNLABELLED, so unlabelled strings never pay for labels
+	 * @return resultant TaintSet, null if no taint
+	 */
+	
+	private static TaintSet layered(int[] labels, TaintSet[] layers) {
+		int[] palette = new int[labels.length];
+		TaintSet[] kept = new TaintSet[layers.length];
+		int n = 0;
+		int first = Integer.MAX_VALUE;
+		int last = 0;
+		
+		for (int i = 0; i < layers.length; i++) {
+			TaintSet layer = computed(layers[i]); // its span is needed now
+			
+			if (layer != null) {
+				palette[n] = labels[i];
+				kept[n] = freeze(layer);
+				first = Math.min(first, kept[n].getFirstTaint());
+				last = Math.max(last, kept[n].getLastTaint());
+				n++;
+			}
+		}
+		
+		if (n == 0) {
+			return null;
+		} else if (n == 1 && palette[0] == UNLABELLED) {
+			return kept[0];
+		}
+		
+		TaintSet set = new TaintSet(first, last - first);
+		set.forms(labelForm).labels = n == palette.length ? palette : Arrays.copyOf(palette, n);
+		set.forms().layers = n == kept.length ? kept : Arrays.copyOf(kept, n);
+		return set;
+	}
+	
+	/**
+	 * Tests whether the char at 'position' relative to the start of the parent string is tainted
+	 * @param position index of character of parent string to test
+	 * @return true if 'position' is set; false otherwise (or out of range)
+	 */
+	
+	public boolean isTaintedAt(int position) {
+		return representation.isTaintedAt(this, position);
+	}
+	
+	// isTaintedAt() in the hybrid representation
+	private boolean isTaintedAtHybrid(int position) {
+		int first = getFirstTaint(); // index relative to first taint
+		
+		return (position >= first && position - first < length && (singleInterval() || contains(position - offset)));
+	}
+	
+	/**
+	 * Tests whether [start, end) overlaps with the taint interval [offset, offset + length)
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	
+	public boolean overlapsWith(int start, int end) {
+		return overlapLength(start, end) > 0;
+	}
+	
+	/**
+	 * Computes the length of overlap between [start, end) and the taint interval [offset, offset + length)
+	 * @param start
+	 * @param end
+	 * @return length of overlap
+	 */
+	
+	public int overlapLength(int start, int end) {
+		int firsttaint = getFirstTaint();
+		return Math.min(end - firsttaint, length) - Math.max(start - firsttaint, 0);
+	}
+	
+	public boolean hasTaintBetween(int start, int end) {
+		return representation.hasTaintBetween(this, start, end);
+	}
+	
+	// hasTaintBetween() in the hybrid representation
+	private boolean hasTaintBetweenHybrid(int start, int end) {
+		return overlapsWith(start, end) // the intervals overlap
+			&& (singleInterval() || !emptySet(start, end)); // single interval or not an empty set between start and end
+	}
+	
+	/**
+	 * Computes the index of the first possibly tainted char in the parent string
+	 * Not guaranteed to correspond to an untainted char
+	 * @return index of the first possibly tainted char in the parent string
+	 */
+
+	public int getFirstTaint() {
+		force();
+		return offset > 0 ? offset : 0;
+	}
+	
+	/**
+	 * Computes the index of the last possibly tainted char in the parent string
+	 * Not guaranteed to correspond to an untainted char
+	 * @return index of the last tainted char in the parent string
+	 */
+	
+	public int getLastTaint() {
+		int first = getFirstTaint();
+		return length > Integer.MAX_VALUE - first ? Integer.MAX_VALUE : first + length;
+	}
+	
+	/**
+	 * Maximum length of the taint
+	 * @return maximum length of the taint
+	 */
+	
+	public int getLength() {
+		force();
+		return length;
+	}
+	
+	/**
+	 * Exact length of the taint, given string length
+	 * @return length of the taint
+	 */
+	
+	public int getLength(int strlen) {
+		force();
+		return Math.min(length, strlen - getFirstTaint());
+	}
+
+	/**
+	 * @return	whether this is using the single interval representation
+	 */
+	
+	public boolean singleInterval() {
+		force();
+		return taintbits == null && runs == null && forms.form == null && inlinebits == 0;
+	}
+	
+	/**
+	 * @return	whether this is using the interval list representation
+	 */
+	
+	public boolean intervalList() {
+		force();
+		return runs != null;
+	}
+	
+	/**
+	 * Sets the largest number of runs kept as an interval list; sets with more runs become position lists, complement lists or bitmaps
+	 * @param count must be positive
+	 */
+	
+	public static void setMaxIntervals(int count) {
+		maxIntervals = Math.max(count, 1);
+	}
+	
+	public static int getMaxIntervals() {
+		return maxIntervals;
+	}
+	
+	/**
+	 * Sets adaptive mode: the largest number of runs kept as an interval list (getMaxIntervals()), and how many holes complement lists may have,
+	 * are adjusted every so many sets to the numbers of runs and lengths of the sets being built, and to how often they're appended to.
+	 * Turning it off keeps the current getMaxIntervals() and restores the complement list limit; setMaxIntervals() still applies until the next adjustment
+	 * @param on
+	 */
+	
+	public static synchronized void setAdaptive(boolean on) {
+		adaptive = on;
+		holeshift = on ? holeshift : cellbits;
+		Arrays.fill(shapes, 0);
+		Arrays.fill(listcheaper, 0);
+		observed = 0;
+		joins = 0;
+	}
+	
+	public static boolean getAdaptive() {
+		return adaptive;
+	}
+	
+	/**
+	 * Sets the range adaptive mode keeps getMaxIntervals() in
+	 * @param floor at least 1
+	 * @param ceiling at least floor
+	 */
+	
+	public static synchronized void setAdaptiveBounds(int floor, int ceiling) {
+		adaptivefloor = Math.max(floor, 1);
+		adaptiveceiling = Math.max(ceiling, adaptivefloor);
+	}
+	
+	public static int getAdaptiveFloor() {
+		return adaptivefloor;
+	}
+	
+	public static int getAdaptiveCeiling() {
+		return adaptiveceiling;
+	}
+	
+	/**
+	 * @return	whether this is using the complement list representation
+	 */
+	
+	public boolean complement() {
+		force();
+		return forms.holes != null;
+	}
+	
+	/**
+	 * @return	whether this is using the position list representation
+	 */
+	
+	public boolean positionList() {
+		force();
+		return forms.positions != null;
+	}
+	
+	/**
+	 * @return	whether this is using the inline bitmap representation
+	 */
+	
+	public boolean inlineBitmap() {
+		force();
+		return inlinebits != 0;
+	}
+	
+	/**
+	 * @return	whether this is using the flag array representation (FLAGS)
+	 */
+	
+	public boolean flagArray() {
+		force();
+		return forms.flags != null;
+	}
+	
+	/**
+	 * @return	whether this set's taint has labels other than UNLABELLED (see label())
+	 */
+	
+	public boolean labelled() {
+		return forms.labels != null;
+	}
+	
+	/**
+	 * @return	whether this is split into chunks
+	 */
+	
+	public boolean chunked() {
+		force();
+		return forms.chunks != null;
+	}
+	
+	/**
+	 * @return	whether this is never modified in place
+	 */
+	
+	public boolean frozen() {
+		return frozen;
+	}
+	
+	/**
+	 * Sets the length of the chunks that long bitmaps are split into
+	 * @param size must be at least cellsize
+	 */
+	
+	public static void setChunkSize(int size) {
+		chunksize = Math.max(size, cellsize);
+	}
+	
+	public static int getChunkSize() {
+		return chunksize;
+	}
+	
+	/**
+	 * @return	whether this is a rope: a node over the two sides of a concatenation
+	 */
+	
+	public boolean rope() {
+		force();
+		return forms.depth > 0;
+	}
+	
+	/**
+	 * @return	whether this stands for a substring or concatenation that hasn't been computed yet (see setLazyDepth())
+	 */
+	
+	public boolean lazy() {
+		return pending != null;
+	}
+	
+	/**
+	 * Whether <code>set</code> taints anything. A deferred set may compute to no taint, yet isn't null, so callers holding a set test it
+	 * with this rather than against null: it carries out the deferred operation first
+	 * @return	whether set is not null and, once computed, not empty
+	 */
+	
+	public static boolean tainted(TaintSet set) {
+		return computed(set) != null;
+	}
+	
+	/**
+	 * @return	the most rope nodes on a path from this down to a set that isn't one; 0 unless this is a rope
+	 */
+	
+	public int getDepth() {
+		force();
+		return forms.depth;
+	}
+	
+	/**
+	 * Sets the length past which a concatenation that would need a bitmap is kept as a rope over its two sides
+	 * @param size must be at least cellsize
 	 */
 	
-	public static TaintSet generate(boolean[] taint) {
-		return generate(taint, 0, -1);
+	public static void setRopeSize(int size) {
+		ropesize = Math.max(size, cellsize);
+	}
+	
+	public static int getRopeSize() {
+		return ropesize;
 	}
 	
 	/**
-	 * Produce a set where [0, len) of the parent string is tainted
-	 * @param len Length of the left-aligned taint
-	 * @return resultant TaintSet, null if no taint
+	 * Sets how many substrings and concatenations generate() may defer on top of one another: their taint is only computed once it's read
+	 * (hasTaintBetween(), getTaintArray(), isTaintedAt(), ...), so strings dropped without being checked never pay for it
+	 * @param depth 0 (the default) computes every result right away
 	 */
 	
-	public static TaintSet generate(int len) {
-		return generate(0, len);
+	public static void setLazyDepth(int depth) {
+		lazydepth = Math.max(depth, 0);
+	}
+	
+	public static int getLazyDepth() {
+		return lazydepth;
 	}
 	
 	/**
-	 * Produce a set where [start, end) of the parent string is tainted
-	 * @param start Start of tainting: Values before this are untainted
-	 * @param end End of tainting: Values after and including this are untainted
-	 * @return resultant TaintSet, null if no taint
+	 * Sets how much of a bitmap a slice has to use to share it: a shorter one gets a compact copy of its part,
+	 * so a short substring of a large tainted string doesn't keep the whole bitmap alive
+	 * @param fraction between 0 (always share) and 1 (0.25 by default)
 	 */
 	
-	public static TaintSet generate(int start, int end) {
-		return start < end ? new TaintSet(start, end - start, null) : null;
+	public static void setCompactFraction(double fraction) {
+		compactfraction = Math.max(0, Math.min(fraction, 1));
 	}
 	
-	// Skip comparison if guaranteed start < end
-	public static TaintSet guardedGenerate(int start, int end) {
-		return new TaintSet(start, end - start, null);
+	public static double getCompactFraction() {
+		return compactfraction;
 	}
 	
-	// FOR TESTING -------------------------------------------
+	/**
+	 * @return	how many slices got a compact copy instead of sharing a bitmap
+	 */
 	
-	public void printTaintBits() {
-		System.out.printf("offset = %d, length = %d\n", offset, length);
-		if(taintbits != null) {
-			for(int i = 0; i < taintbits.length; i++) {
-				System.out.printf("\t%3d: %s\n", i, Integer.toBinaryString(taintbits[i]));
-			}
-		}
+	public static long getCompactions() {
+		return compactions;
 	}
 	
-	public String toString(int len) {
-		boolean[] taintarr = getTaintArray(len);
-		char[] taintstr = new char[len];
-		for(int i = 0; i < len; i++) {
-			taintstr[i] = taintarr[i] ? '1' : '0';
-		}
-		return new String(taintstr);
-	}
+	/**
+	 * @return	how many bytes of bitmap those slices would have kept alive besides their own part
+	 */
 	
-	public String toString() {
-		return toString(length + getFirstTaint());
+	public static long getCompactedBytes() {
+		return compactedbytes;
 	}
 	
-	public boolean equals(Object o) {
-		TaintSet set = (TaintSet) o;
-		if (set.length != length) {
-			return false;
-		}
-
-		if (length == Integer.MAX_VALUE) {
-			return set.taintbits == null && this.taintbits == null;
-		}
-		
-		return set.toString().equals(toString());
+	/**
+	 * Sets the length from which bitmaps are kept off the heap once a String takes them (see freeze()),
+	 * so large tainted documents don't fill the old generation
+	 * @param size at least cellsize; Integer.MAX_VALUE (the default) keeps every bitmap on the heap
+	 */
+	
+	public static void setOffHeapSize(int size) {
+		offheapsize = Math.max(size, cellsize);
 	}
 	
-	public static boolean[] getTaintArray(TaintSet set, int len) {
-		return set == null ? new boolean[len] : set.getTaintArray(len);
+	public static int getOffHeapSize() {
+		return offheapsize;
 	}
 	
-	// END FOR TESTING -------------------------------------------
-
 	/**
-	 * Returns a zero-offset boolean array whose values map each character of the parent string, by index, to whether it is tainted
-	 * @param len Length of the parent string, and thus the length of the resultant boolean taint array
-	 * @return a zero-offset boolean array whose values map each character of the parent string, by index, to whether it is tainted
+	 * Sets how many bytes of direct buffers off-heap bitmaps may hold at once: a bitmap that would go over it stays on the heap,
+	 * so the buffers waiting for the collector never run the process out of direct memory
+	 * @param bytes at least 0; the default is 64MB
 	 */
 	
-	public boolean[] getTaintArray(int len) {
-		boolean[] taintarr = new boolean[len];
-		
-		for(int i = 0; i < len; i++) {
-			taintarr[i] = isTaintedAt(i);
-		}
-		
-		
-		return taintarr;
+	public static void setOffHeapBudget(long bytes) {
+		offheapbudget = Math.max(bytes, 0);
 	}
 	
-	public static TaintSet makeCopy(TaintSet set) {
-		if (set == null) {
-			return null;
-		} else {
-			if (set.offset < 0) {
-				// assert: set.taintbits != null
-				return new TaintSet(0, set.length, new int[numCells(set.length)]).fill(0, set);
-			} else {
-				return new TaintSet(set.offset, set.length, set.taintbits == null ? null : set.taintbits.clone());
-			}
-		}
+	public static long getOffHeapBudget() {
+		return offheapbudget;
 	}
 	
 	/**
-	 * Calculate the maximum number of characters this object can track without reallocating the bitmap.
-	 * 
-	 * @return Integer.MAX_VALUE if this is single interval (infinitely expandable); otherwise offset + cellsize * taintbits.length
+	 * @return	how many bytes of direct buffers off-heap bitmaps hold (some may have been collected and not yet counted out)
 	 */
 	
-	public int maxSize() {
-		return taintbits == null ? Integer.MAX_VALUE : offset + cellsize * taintbits.length;
+	public static synchronized long getOffHeapBytes() {
+		release();
+		return offheapbytes;
 	}
 	
 	/**
-	 * Ensures set.maxSize() >= size. If that's not the case, reallocates bitmap.
-	 * @param set
-	 * @param size
-	 * @return
+	 * @return	how many direct buffers off-heap bitmaps are in (some may have been collected and not yet counted out); a chunked set's bitmaps share one
 	 */
 	
-	public static TaintSet ensureCapacity(TaintSet set, int size) {
-		if (set == null || size <= set.getLastTaint() || size <= set.maxSize()) {
-			return set;
-		}
-
-		TaintSet set2 = new TaintSet(set.offset, set.length, new int[numCells(size - set.offset)]);
-		set2.fill(0, set);
-
-		return set2;
+	public static synchronized int getOffHeapBuffers() {
+		release();
+		return offheapbuffers;
 	}
 	
 	/**
-	 * Calls destructive version of generate for concat
-	 * @param b1
-	 * @param len1
-	 * @param b2
-	 * @param len2
-	 * @param capacity
-	 * @return
+	 * Sets the length from which a frozen bitmap is indexed (see Summary), by the first range query on it,
+	 * so hasTaintBetween() and countTainted() on it take a few word reads rather than a scan of the range
+	 * @param size at least cellsize; Integer.MAX_VALUE never indexes a bitmap
 	 */
 	
-	public static TaintSet append(TaintSet b1, int len1, final TaintSet b2, int len2, int capacity) {
-		return generate(ensureCapacity(b1, capacity), len1, b2, len2, capacity);
+	public static void setSummarySize(int size) {
+		summarysize = Math.max(size, cellsize);
 	}
 	
-	public static TaintSet replace(TaintSet set, int start, int end, int length, TaintSet replacement) {
-		if (end <= start) {
-			return set;
-		} else if (set == null) {
-			return replacement == null ? null : new TaintSet(replacement.offset + start, replacement.length, replacement.taintbits);
-		} else {
-			// TODO: Hackish implementation. Concatenating substrings.
-			return TaintSet.generate(
-					TaintSet.generate(
-							TaintSet.generate(set, 0, start),
-							start,
-							replacement,
-							length + start,
-							set.getLength() + length),
-						length + start,
-						TaintSet.generate(set, end, set.getLastTaint()),
-						Integer.MAX_VALUE,
-						set.getLength() + length
-					);
-		}
+	public static int getSummarySize() {
+		return summarysize;
 	}
 	
 	/**
-	 * Destructively moves all taints starting at <code>index</code> by <code>size</code> (Used for buffer/builder.insert)
-	 * @param set
-	 * @param size
-	 * @param index	must be non-negative
-	 * @return
+	 * @return	whether this set's bitmap, or that of any of its chunks, has been indexed (see setSummarySize()); a set to be indexed isn't until it's queried
 	 */
 	
-	public static TaintSet move(TaintSet set, int size, int index) {
-		
-		assert(index >= 0);
-		
-		if (set == null || index >= set.getLastTaint() || size == 0) {
-			return set;
-		} else if (index > set.offset) { // split
-			set.length += size;
-			
-			if (set.taintbits == null) {
-				// convert to bitset
-				set.taintbits = new int[numCells(set.length)];
-				set.setTainted(set.offset, index);
-				set.setTainted(index + size, set.getLastTaint());
-			} else {
-				// TODO
-				set = TaintSet.generate(
-						TaintSet.generate(set, 0, index),
-						index + size,
-						TaintSet.generate(set, index, set.getLastTaint())
-					);
+	public boolean summarized() {
+		if (forms.chunks != null) {
+			for (int i = 0; i < forms.chunks.length; i++) {
+				if (forms.chunks[i].summarized()) {
+					return true;
+				}
 			}
-		} else {
-			set.offset += index;
 		}
 		
-		return set;
+		return forms.summary != null && forms.summary != unbuilt;
 	}
 	
 	/**
-	 * Destructive: Sets set = Union(b + offset, set), but (b + offset) must be within set (in range)
-	 * 
-	 * Range of where b fits is empty
-	 * @param set
-	 * @param offset
-	 * @param b
-	 * @return
+	 * @return	whether this set's bitmap, or that of any of its chunks, is off the heap
 	 */
 	
-	public static TaintSet union(TaintSet set, int offset, TaintSet b) {
-		if (b != null) {
-			// TODO: b might be allTainted
-			if (set == null) {
-				set = offset == 0 ? b : new TaintSet(b.offset + offset, b.length, b.taintbits);
-			} else {
-				int new_offset = b.getFirstTaint() + offset;
-				int old_length = set.length;
-				int old_offset = set.offset;
-				
-				if (new_offset < set.offset) {
-					set.offset = new_offset;
-				}
-				
-				set.length = Math.max(new_offset + b.length, set.offset + set.length) - Math.min(new_offset, set.offset);
-				
-				// both b and set exist
-				if (set.taintbits == null) {
-					// TODO: Figure out what I meant by "not fully immersed"; b.length == 0?
-					if (set.length > old_length) {
-						set.taintbits = new int[numCells(set.length)];
-						set.setTainted(old_offset, old_offset + old_length);
-						set.fill(offset, b);
-					}
-				} else {
-					set.fill(offset, b);
+	public boolean offHeap() {
+		if (forms.chunks != null) {
+			for (int i = 0; i < forms.chunks.length; i++) {
+				if (forms.chunks[i].offHeap()) {
+					return true;
 				}
 			}
 		}
-		return set;
+		
+		return forms.bitbuffer != null;
 	}
 	
 	/**
-	 * If <code>set</code> is a bitmap and <code>position</code> is within the range of set.taintbits, then set the bit corresponding to the position to value
-	 * 
-	 * Expands or contracts set.length if necessary.
-	 * 
-	 * Must call ensureCapacity before; otherwise not guaranteed to work
-	 * 
-	 * @param set
-	 * @param position
-	 * @param value
+	 * Sets coarse mode: taint of at least getCoarseSize() chars that would need bits is kept as one bit per block of 'grain' chars,
+	 * set if any char in the block is tainted. Answers may then report untainted chars as tainted, never the reverse
+	 * @param grain chars per block; 0 (the default) keeps taint exact
 	 */
 	
-	public static void set(TaintSet set, int position, boolean value) {
-		if (set != null && set.taintbits != null && position >= set.getFirstTaint()) {
-			position -= set.offset; // position is now the bit offset within taintbits
-			
-			if (position >= 0 && position < set.taintbits.length * cellsize) {
-				if (value) {
-					if (position >= set.length) {
-						set.length = position + 1;
-					}
-					
-					set.add(position);
-				} else {
-					if (position + 1 == set.length) {
-						set.length = position;
-					}
-					
-					set.remove(position);
-				}
-			}
-		}
+	public static void setCoarseGrain(int grain) {
+		coarsegrain = Math.max(grain, 0);
 	}
 	
-	/**
-	 * Tests whether the char at 'position' relative to the start of the parent string is tainted
-	 * @param position index of character of parent string to test
-	 * @return true if 'position' is set; false otherwise (or out of range)
-	 */
-	
-	public boolean isTaintedAt(int position) {
-		int first = getFirstTaint(); // index relative to first taint
-		
-		return (position >= first && position < first + length && (singleInterval() || contains(position - offset)));
+	public static int getCoarseGrain() {
+		return coarsegrain;
 	}
 	
 	/**
-	 * Tests whether [start, end) overlaps with the taint interval [offset, offset + length)
-	 * @param start
-	 * @param end
-	 * @return
+	 * Sets the length from which taint is made coarse, if setCoarseGrain() is set. Shorter substrings of coarse sets are exact again,
+	 * each tainted block whole
+	 * @param size at least 1
 	 */
 	
-	public boolean overlapsWith(int start, int end) {
-		return overlapLength(start, end) > 0;
+	public static void setCoarseSize(int size) {
+		coarsesize = Math.max(size, 1);
+	}
+	
+	public static int getCoarseSize() {
+		return coarsesize;
 	}
 	
 	/**
-	 * Computes the length of overlap between [start, end) and the taint interval [offset, offset + length)
-	 * @param start
-	 * @param end
-	 * @return length of overlap
+	 * @return	whether this set is coarse: a bit per block of getBlockSize() chars
 	 */
 	
-	public int overlapLength(int start, int end) {
-		int firsttaint = getFirstTaint();
-		return Math.min(end, firsttaint + length) - Math.max(start, firsttaint);
-	}
-	
-	public boolean hasTaintBetween(int start, int end) {
-		return overlapsWith(start, end) // the intervals overlap
-			&& (singleInterval() || !emptySet(start, end)); // single interval or not an empty set between start and end
+	public boolean coarse() {
+		force();
+		return forms.blockbits != null;
 	}
 	
 	/**
-	 * Computes the index of the first possibly tainted char in the parent string
-	 * Not guaranteed to correspond to an untainted char
-	 * @return index of the first possibly tainted char in the parent string
+	 * @return	chars per bit if coarse(); 1 otherwise
 	 */
-
-	public int getFirstTaint() {
-		return offset > 0 ? offset : 0;
+	
+	public int getBlockSize() {
+		force();
+		return forms.blockbits == null ? 1 : forms.blocksize;
 	}
 	
 	/**
-	 * Computes the index of the last possibly tainted char in the parent string
-	 * Not guaranteed to correspond to an untainted char
-	 * @return index of the last tainted char in the parent string
+	 * Sets whether freeze() interns bitmaps: a set handed to a String then shares one array with every other frozen set
+	 * whose bitmap is identical, instead of keeping its own copy. Interned arrays are held weakly
+	 * @param intern
 	 */
 	
-	public int getLastTaint() {
-		return getFirstTaint() + length;
+	public static void setInterning(boolean intern) {
+		interning = intern;
+	}
+	
+	public static boolean getInterning() {
+		return interning;
 	}
 	
 	/**
-	 * Maximum length of the taint
-	 * @return maximum length of the taint
+	 * @return	how many bitmaps have been looked up in the intern table
 	 */
 	
-	public int getLength() {
-		return length;
+	public static synchronized long getInternLookups() {
+		return internlookups;
 	}
 	
 	/**
-	 * Exact length of the taint, given string length
-	 * @return length of the taint
+	 * @return	how many of those lookups found an identical bitmap to share; getInternHits() / getInternLookups() is the hit rate
 	 */
 	
-	public int getLength(int strlen) {
-		return Math.min(length, strlen - getFirstTaint());
+	public static synchronized long getInternHits() {
+		return internhits;
 	}
-
+	
 	/**
-	 * @return	whether this is using the single interval representation
+	 * @return	how many distinct bitmaps the intern table holds (some may have been collected and not yet removed)
 	 */
 	
-	public boolean singleInterval() {
-		return taintbits == null;
+	public static synchronized int getInternSize() {
+		return internedcount;
 	}
 	/*
 	public static TaintSet reversed(TaintSet set, int len) {
@@ -580,9 +4265,13 @@ public final class TaintSet {
 	 * @param taint
 	 * @param start
 	 * @param end
-	 * @return allTrue(taint, start, end) if taint != null, false otherwise
+	 * @return true iff taint[start .. end-1] has a tainted value
 	 */
 	private boolean initializeTo(boolean[] taint, int start, int end) {
+		int grain = coarsegrain;
+		int chunklimit = chunksize;
+		int runlimit = maxIntervals;
+		
 		if (taint == null) {
 			return false;
 		}
@@ -619,15 +4308,89 @@ public final class TaintSet {
 		length = end - start;
 		offset = start;
 		
-		// must create a bitset from boolean array
-		if (!allTrue(taint, start, end)) {
-			taintbits = new int[numCells(length)];
+		int count = countRuns(taint, start, end);
+		
+		if (adaptive && count > 1) {
+			observe(count, length);
+		}
+		int tainted = count > runlimit ? countTainted(taint, start, end) : 0;
+		boolean sparse = count > runlimit && sparse(tainted, count, length, runlimit);
+		boolean complement = count > runlimit && !sparse && length > cellsize && count - 1 <= maxHoles(length, runlimit);
+		
+		if (sparse) {
+			// isolated taint: list each tainted char
+			forms(positionForm).positions = new int[tainted];
+			int n = 0;
+			
+			for (int i = start; i < end; i++) {
+				if (taint[i]) {
+					forms.positions[n++] = i - start;
+				}
+			}
+		} else if (count > runlimit && !complement && grain > 0 && length >= coarsesize) {
+			// coarse: a bit per block, set by the first tainted char in it
+			forms().blocksize = grain;
+			offset = start - start % forms.blocksize;
+			length = end - offset;
+			forms(coarseForm).blockbits = new long[numCells(blockCount())];
+			
+			for (int i = start; i < end; i++) {
+				if (taint[i]) {
+					int block = (i - offset) / forms.blocksize;
+					forms.blockbits[block >> cellbits] |= 0x8000000000000000L >>> (block & cellmax);
+					i = offset + (block + 1) * forms.blocksize - 1;
+				}
+			}
+		} else if (count > runlimit && !complement && length > chunklimit) {
+			// too long for one bitmap: each chunk is generated from its own stretch of the array
+			int[] starts = new int[(length - 1) / chunklimit + 1];
+			TaintSet[] chunks = new TaintSet[starts.length];
+			int n = 0;
+			
+			for (int begin = start, stop; begin < end; begin = stop) {
+				stop = begin + Math.min(chunklimit, end - begin);
+				TaintSet chunk = generateHybrid(taint, begin, stop);
+				
+				if (chunk != null) {
+					chunk.offset -= begin;
+				}
+				
+				n = addChunk(starts, chunks, n, begin, chunk);
+			}
+			
+			TaintSet set = packChunks(starts, chunks, n);
+			this.forms().starts = set.forms.starts;
+			this.forms(chunkForm).chunks = set.forms.chunks;
+		} else if (count > runlimit && !complement) {
+			// must create a bitset from boolean array; inline if it fits in a word
+			if (length > cellsize) {
+				taintbits = new long[numCells(length)];
+			}
 			
 			for (int i = start; i < end; i++) {
 				if (taint[i]) {
 					add(i - start);
 				}
 			}
+		} else if (count > 1) {
+			// an interval list: record every change between tainted and untainted
+			runs = new int[count << 1];
+			int n = 0;
+			
+			for (int i = start; i < end; i++) {
+				if (taint[i] != (i > start && taint[i - 1])) {
+					runs[n++] = i - start;
+				}
+			}
+			
+			runs[n] = length;
+			
+			if (complement) {
+				// only the holes between the runs are kept
+				forms(complementForm).holes = new int[n - 1];
+				System.arraycopy(runs, 1, forms.holes, 0, n - 1);
+				runs = null;
+			}
 		}
 		
 		return true;
@@ -635,6 +4398,11 @@ public final class TaintSet {
 
 	// set the entire [start, end) to true
 	private TaintSet setTainted(int start, int end) {
+		if (taintbits == null) {
+			inlinebits |= head(end) & ~head(start);
+			return this;
+		}
+		
 		// get the taintbit bit offset
 		int start_bits = start & cellmax;
 		int end_bits = end & cellmax;
@@ -644,15 +4412,44 @@ public final class TaintSet {
 		end = (end - 1) >> cellbits;
 
 		if (start == end) { // only one word to fill
-			taintbits[start] |= ~0 >>> start_bits & ~0 << (cellsize - end_bits);
+			taintbits[start] |= ~0L >>> start_bits & ~0L << (cellsize - end_bits);
 		} else if (start < end) {
-			taintbits[start] |= ~0 >>> start_bits;
-			
-			for (int i = start + 1; i < end; i++) {
-				taintbits[i] = ~0;
-			}
-			
-			taintbits[end] |= ~0 << (cellsize - end_bits);
+			taintbits[start] |= ~0L >>> start_bits;
+			Arrays.fill(taintbits, start + 1, end, ~0L);
+			taintbits[end] |= ~0L << (cellsize - end_bits);
+		}
+		
+		return this;
+	}
+
+	// set every run of an interval list, shifted by 'shift', to true, up to run position maxlen
+	private TaintSet setTainted(int[] runs, int shift, int maxlen) {
+		for (int i = 0; i < runs.length && runs[i] < maxlen; i += 2) {
+			setTainted(runs[i] + shift, Math.min(runs[i + 1], maxlen) + shift);
+		}
+		
+		return this;
+	}
+	
+	// set the entire [start, end) to false
+	private TaintSet setUntainted(int start, int end) {
+		if (taintbits == null) {
+			inlinebits &= ~(head(end) & ~head(start));
+			return this;
+		}
+		
+		int start_bits = start & cellmax;
+		int end_bits = end & cellmax;
+		
+		start = start >> cellbits;
+		end = (end - 1) >> cellbits;
+
+		if (start == end) {
+			taintbits[start] &= ~(~0L >>> start_bits & ~0L << (cellsize - end_bits));
+		} else if (start < end) {
+			taintbits[start] &= ~(~0L >>> start_bits);
+			Arrays.fill(taintbits, start + 1, end, 0L);
+			taintbits[end] &= ~(~0L << (cellsize - end_bits));
 		}
 		
 		return this;
@@ -660,65 +4457,80 @@ public final class TaintSet {
 
 	// UNION 'set', shifted to the right by 'offset', into 'taintbits'
 	private TaintSet fill(int offset, TaintSet set) {
-		// assert(set.length > 0 && set.taintbits != null && set.length < Integer.MAX_VALUE);
+		return fill(offset, set, set.length);
+	}
+	
+	// UNION the first 'count' bits of 'set' (a bitmap), shifted to the right by 'offset', into 'taintbits'
+	private TaintSet fillBits(int offset, TaintSet set, int count) {
+		// assert(count > 0 && set.taintbits != null && count <= set.length);
 
 		// compute information for the start of the source taintbits array
 		int start_src = set.getTaintOffset();
 		int start_src_bits = start_src & cellmax;
 		
 		// compute information for the end of the source taintbits array
-		int end_src = start_src + set.length;
+		int end_src = start_src + count;
 		int end_src_bits = end_src & cellmax;
 		
 		// start_dest - start_src
 		int difference = (set.getFirstTaint() + offset - this.offset) - start_src; // diff = dest - src => src + diff = dest // TODO: explain better
 		int difference_bits = difference & cellmax;
 		
+		if (taintbits == null) {
+			// inline: at most a word to copy
+			return orBits(start_src + difference, set.bitsAt(start_src, count));
+		} else if (set.forms.bitbuffer != null) {
+			// off heap: read a word at a time
+			for (int i = 0; i < count; i += cellsize) {
+				orBits(start_src + difference + i, set.bitsAt(start_src + i, Math.min(cellsize, count - i)));
+			}
+			
+			return this;
+		}
+		
 		// we have the _bits; we only need the cell indices now
 		end_src = (end_src - 1) >> cellbits; // very last source "cell"
 		start_src >>= cellbits; // very first source "cell"
 		difference >>= cellbits;
 		
+		// relevant portions of the first and last source cells (the same cell when start_src == end_src)
+		long start_cell = set.taintbits[start_src] & ~0L >>> start_src_bits;
+		long end_cell = set.taintbits[end_src] & ~0L << (cellsize - end_src_bits);
+		
+		if (start_src == end_src) {
+			start_cell &= end_cell;
+			end_cell = start_cell;
+		}
+		
 		if (difference_bits == 0) {
 			// fill but don't rotate:
 			// Special case because it is done at least half the time when concatenating two strings,
 			// the first of which has not been substringed (offset non-negative)
+			taintbits[start_src + difference] |= start_cell;
 			
-			// only one cell to copy. easy
-			if (end_src == start_src) {
-				taintbits[start_src + difference] |= set.taintbits[start_src] &
-					(~0 >>> start_src_bits) & (~0 << (cellsize - end_src_bits)); // mask: >= start_src_bits AND < end_src_bits
-			} else {
-				// copy the relevant portions of the start cell (by masking out the first start_src_bits bits)
-				taintbits[start_src + difference] |= set.taintbits[start_src] & ~0 >>> start_src_bits;
-					
-				// copy the relevant portions of the second cell (by masking out all but the first end_src_bits bits)
-				taintbits[end_src + difference] |= set.taintbits[end_src] & ~0 << (cellsize - end_src_bits);
-
+			if (start_src != end_src) {
 				// copy set.taintbits[start_src + 1 ... end_src - 1] to taintbits[start_src + difference + 1 ... end_src + difference - 1]
-				while (start_src++ < end_src) {
-					taintbits[start_src + difference] = set.taintbits[start_src];
-				}
+				orWords(taintbits, start_src + difference + 1, set.taintbits, start_src + 1, end_src);
+				taintbits[end_src + difference] |= end_cell;
 			}
 		} else {
 			int bit_offset_neg = cellsize - difference_bits;
-
-			int start_cell = set.taintbits[start_src] & ~0 >>> start_src_bits;
-			int end_cell = set.taintbits[end_src] & ~0 << (cellsize - end_src_bits);
 			
 			if ((start_cell >>> difference_bits) != 0) {
 				taintbits[start_src + difference] |= start_cell >>> difference_bits; // copy over the first part of start_cell
 			}
 			
 			if (start_src != end_src) {
-				taintbits[start_src + difference + 1] |= start_cell << bit_offset_neg; // copy over the second part of start_cell
+				long prev_cell = start_cell; // the source cell before end_src
 				
-				for (int i = start_src + 1; i < end_src; i++) {
-					taintbits[i + difference] |= set.taintbits[i] >>> difference_bits; // copy over the first part of set.taintbits[i] to taintbits[i + difference]
-					taintbits[i + difference + 1] |= set.taintbits[i] << bit_offset_neg; // copy over the second part of set.taintbits[i] to taintbits[i + difference + 1]
+				if (start_src + 1 < end_src) {
+					// each destination cell is the second part of one source cell and the first part of the next, so no cell is written twice
+					taintbits[start_src + difference + 1] |= start_cell << bit_offset_neg | set.taintbits[start_src + 1] >>> difference_bits;
+					orShiftedWords(taintbits, start_src + difference + 2, set.taintbits, start_src + 2, end_src, difference_bits);
+					prev_cell = set.taintbits[end_src - 1];
 				}
-
-				taintbits[end_src + difference] |= end_cell >>> difference_bits; // copy over the first part of end_cell
+				
+				taintbits[end_src + difference] |= prev_cell << bit_offset_neg | end_cell >>> difference_bits; // the second part of the cell before end_cell, and the first part of end_cell
 			}
 			
 			if ((end_cell << bit_offset_neg) != 0) {
@@ -730,7 +4542,7 @@ public final class TaintSet {
 	}
 	
 	/**
-	 * Unions set + offset into 'this'
+	 * Unions set + offset into 'this', taking at most maxlen characters of set
 	 * @param offset
 	 * @param set
 	 * @param maxlen
@@ -738,21 +4550,130 @@ public final class TaintSet {
 	 */
 	
 	private TaintSet fill(int offset, TaintSet set, int maxlen) {
-		if (set.length == 0) {
-			return null;
+		maxlen = Math.min(set.length, maxlen);
+		
+		if (maxlen <= 0) {
+			return this;
 		}
 		
-		if (set.taintbits == null) {
+		if (set.forms.blockbits != null) {
+			int n = set.blockCount();
+			offset += set.offset - this.offset;
+			
+			for (int i = firstBit(set.forms.blockbits, 0, n); i < n && i * set.forms.blocksize < maxlen; i = firstBit(set.forms.blockbits, i + 1, n)) {
+				setTainted(offset + i * set.forms.blocksize, offset + Math.min((i + 1) * set.forms.blocksize, maxlen));
+			}
+			
+			return this;
+		} else if (set.forms.flags != null) {
+			for (int i = 0; i < maxlen; i++) {
+				if (set.forms.flags[i]) {
+					add(offset - this.offset + i);
+				}
+			}
+			
+			return this;
+		} else if (set.forms.layers != null) {
+			for (int i = 0; i < set.forms.layers.length; i++) {
+				fill(offset, set.forms.layers[i], set.offset + maxlen - set.forms.layers[i].getFirstTaint());
+			}
+			
+			return this;
+		} else if (set.forms.positions != null) {
+			for (int i = 0; i < set.forms.positions.length && set.forms.positions[i] < maxlen; i++) {
+				add(offset + set.offset - this.offset + set.forms.positions[i]);
+			}
+			
+			return this;
+		} else if (set.runs != null || set.forms.holes != null) {
+			return setTainted(set.taintedRuns(), offset + set.offset - this.offset, maxlen);
+		} else if (set.inlinebits != 0) {
+			return orBits(offset + set.offset - this.offset, set.inlinebits & head(maxlen));
+		} else if (set.taintbits == null) {
 			offset += set.offset - this.offset;
-			return setTainted(offset, offset + Math.min(set.length, maxlen));
+			return setTainted(offset, offset + maxlen);
+		} else {
+			return fillBits(offset, set, maxlen);
+		}
+	}
+	
+	// UNION 'word', whose first bit is bit 'position' of 'taintbits', into 'taintbits'
+	private TaintSet orBits(int position, long word) {
+		if (taintbits == null) {
+			inlinebits |= position < cellsize ? word >>> position : 0;
 		} else {
-			return fill(offset, set);
+			int cell = position >> cellbits;
+			int bits = position & cellmax;
+			taintbits[cell] |= word >>> bits;
+			
+			if (bits != 0 && (word << (cellsize - bits)) != 0) {
+				taintbits[cell + 1] |= word << (cellsize - bits);
+			}
+		}
+		
+		return this;
+	}
+	
+	// clips [start, end) to the taint interval so the bitmap is never indexed past its last cell
+	private boolean emptySet(int start, int end) {
+		int first = getFirstTaint();
+		start = Math.max(start, first) - offset;
+		end = Math.min(end - first, length) + first - offset;
+		
+		if (runs != null) {
+			int i = findRun(runs, start);
+			return i >= runs.length || runs[i] >= end;
+		} else if (forms.form != null) {
+			return forms.form.emptySet(this, start, end);
+		} else if (taintbits == null) {
+			return start >= end || (inlinebits & head(end) & ~head(start)) == 0;
+		} else if (forms.summary != null) {
+			return emptyBits(summary(), start, end);
+		} else if (forms.bitbuffer != null) {
+			for (int i = start; i < end; i += cellsize) {
+				if (bitsAt(i, Math.min(cellsize, end - i)) != 0) {
+					return false;
+				}
+			}
+			
+			return true;
+		}
+		
+		return emptySet(taintbits, start, end);
+	}
+	
+	// emptySet() of bits [start, end) of the bitmap, from its summary: the two partial words at the ends are read, and the words between only through summary.nonzero
+	private boolean emptyBits(Summary summary, int start, int end) {
+		if (start >= end) {
+			return true;
+		}
+		
+		int first = start >> cellbits;
+		int last = (end - 1) >> cellbits;
+		
+		if (first == last) {
+			return bitsAt(start, end - start) == 0;
+		}
+		
+		return bitsAt(start, cellsize - (start & cellmax)) == 0 && bitsAt(last << cellbits, end - (last << cellbits)) == 0
+			&& emptySet(summary.nonzero, first + 1 - summary.base, last - summary.base);
+	}
+	
+	// The number of set bits in [0, position) of the bitmap, from its summary: at most rankwords words are counted
+	private int rank(Summary summary, int position) {
+		int cell = position >> cellbits;
+		int rank = summary.ranks[(cell - summary.base) / rankwords];
+		
+		for (int i = cell - (cell - summary.base) % rankwords; i < cell; i++) {
+			rank += Long.bitCount(cellAt(i));
 		}
 		
+		return (position & cellmax) == 0 ? rank : rank + Long.bitCount(bitsAt(cell << cellbits, position & cellmax));
 	}
 	
-	private boolean emptySet(int start, int end) {		
-		return emptySet(taintbits, Math.max(start - offset, 0), Math.max(end - offset, 0));
+	// Word 'cell' of the bitmap, on the heap or off it
+	private long cellAt(int cell) {
+		return forms.bitbuffer != null ? forms.bitbuffer.get(cell) : taintbits[cell];
 	}
 	
 	
@@ -769,43 +4690,385 @@ public final class TaintSet {
 	
 	// Set bit *position - offset* to true
 	private void add(int position) {
-		taintbits[position >>> cellbits] |= 0x80000000 >>> (position & cellmax);
+		if (taintbits == null) {
+			inlinebits |= 0x8000000000000000L >>> position;
+			return;
+		}
+		
+		taintbits[position >>> cellbits] |= 0x8000000000000000L >>> (position & cellmax);
 	}
 	
 	// Set bit *position - offset* to false
 	private void remove(int position) {
-		taintbits[position >>> cellbits] &= ~(0x80000000 >>> (position & cellmax));
+		if (taintbits == null) {
+			inlinebits &= ~(0x8000000000000000L >>> position);
+			return;
+		}
+		
+		taintbits[position >>> cellbits] &= ~(0x8000000000000000L >>> (position & cellmax));
 	}
 	
 	// Tests bit *position - offset*
 	private boolean contains(int position) {
-		return (taintbits[position >>> cellbits] & (0x80000000 >>> (position & cellmax))) != 0;
+		if (runs != null) {
+			int i = findRun(runs, position);
+			return i < runs.length && runs[i] <= position;
+		} else if (forms.form != null) {
+			return forms.form.contains(this, position);
+		} else if (taintbits == null) {
+			return (inlinebits & (0x8000000000000000L >>> position)) != 0;
+		} else if (forms.bitbuffer != null) {
+			return (forms.bitbuffer.get(position >>> cellbits) & (0x8000000000000000L >>> (position & cellmax))) != 0;
+		}
+		
+		return (taintbits[position >>> cellbits] & (0x8000000000000000L >>> (position & cellmax))) != 0;
+	}
+	
+	// Whether this is a single interval or a list, i.e. there are no bits to copy
+	private boolean runsOnly() {
+		return taintbits == null && inlinebits == 0 && (forms.form == null || forms.form.list());
+	}
+	
+	/**
+	 * The taint of chars [start, start + count) of the parent string as a word: bit (cellsize - 1 - i) is char start + i
+	 * @param count at most cellsize
+	 */
+	
+	private long word(int start, int count) {
+		int from = Math.max(start, getFirstTaint());
+		int to = (int) Math.min((long) start + count, getLastTaint());
+		
+		if (from >= to) {
+			return 0;
+		} else if (forms.form != null) {
+			return forms.form.word(this, start, from, to);
+		} else if (runs != null) {
+			long word = 0;
+			
+			for (int i = findRun(runs, from - offset); i < runs.length && offset + runs[i] < to; i += 2) {
+				int runstart = Math.max(offset + runs[i], from);
+				word |= head(Math.min(offset + runs[i + 1], to) - runstart) >>> (runstart - start);
+			}
+			
+			return word;
+		} else if (inlinebits != 0) {
+			return (inlinebits << (from - offset) & head(to - from)) >>> (from - start);
+		} else if (taintbits == null) {
+			return head(to - from) >>> (from - start);
+		} else {
+			return bitsAt(from - offset, to - from) >>> (from - start);
+		}
+	}
+	
+	// The 'count' (at most cellsize) bits of the bitmap starting at bit 'position', as a word
+	private long bitsAt(int position, int count) {
+		if (taintbits == null) {
+			return inlinebits << position & head(count);
+		}
+		
+		int cell = position >> cellbits;
+		int bits = position & cellmax;
+		
+		if (forms.bitbuffer != null) {
+			long word = forms.bitbuffer.get(cell) << bits;
+			
+			if (bits != 0 && bits + count > cellsize) {
+				word |= forms.bitbuffer.get(cell + 1) >>> (cellsize - bits);
+			}
+			
+			return word & head(count);
+		}
+		
+		long word = taintbits[cell] << bits;
+		
+		if (bits != 0 && bits + count > cellsize) {
+			word |= taintbits[cell + 1] >>> (cellsize - bits);
+		}
+		
+		return word & head(count);
+	}
+	
+	// Number of bounds needed to list the runs of a single interval or a list
+	private int runBounds() {
+		return runs != null ? runs.length : forms.holes != null ? forms.holes.length + 2 : forms.positions != null ? forms.positions.length << 1 : 2;
+	}
+	
+	// The runs of a single interval or a list, relative to offset
+	private int[] taintedRuns() {
+		if (runs != null) {
+			return runs;
+		} else if (forms.positions != null) {
+			// adjacent positions coalesce into one run
+			int[] tainted = new int[forms.positions.length << 1];
+			int n = 0;
+			
+			for (int i = 0; i < forms.positions.length; i++) {
+				n = addRun(tainted, n, forms.positions[i], forms.positions[i] + 1);
+			}
+			
+			if (n == tainted.length) {
+				return tainted;
+			}
+			
+			int[] trimmed = new int[n];
+			System.arraycopy(tainted, 0, trimmed, 0, n);
+			return trimmed;
+		} else if (forms.holes == null) {
+			return new int[]{0, length};
+		}
+		
+		// the holes are the gaps between the runs
+		int[] tainted = new int[forms.holes.length + 2];
+		System.arraycopy(forms.holes, 0, tainted, 1, forms.holes.length);
+		tainted[tainted.length - 1] = length;
+		return tainted;
+	}
+	
+	// Most chunks that collectChunks() can add for this set
+	private int chunkBound() {
+		if (forms.chunks != null) {
+			int bound = 1;
+			
+			for (int i = 0; i < forms.chunks.length; i++) {
+				bound += forms.chunks[i].chunkBound();
+			}
+			
+			return bound;
+		} else if (taintbits != null || forms.holes != null || forms.positions != null) {
+			// slices of a complement or position list may be packed into a long bitmap
+			return length / chunksize + 2;
+		} else {
+			return 1;
+		}
 	}
 
 	/*****************************************************************************
 	 * Helper methods
 	 *****************************************************************************/
 	
-	// True iff taint[start .. end-1] are all true, or represents empty interval
+	// Number of true values in taint[start .. end-1]
 	// Warning: doesn't check bounds
-	private static boolean allTrue(boolean[] taint, int start, int end) {
+	private static int countTainted(boolean[] taint, int start, int end) {
+		int count = 0;
+		
 		for (int i = start; i < end; i++) {
-			if (!taint[i]) {
-				return false;
+			if (taint[i]) {
+				count++;
 			}
 		}
 		
-		return true;
+		return count;
+	}
+	
+	// Number of chars covered by the absolute runs runs[0 .. n)
+	private static int countTainted(int[] runs, int n) {
+		int count = 0;
+		
+		for (int i = 0; i < n; i += 2) {
+			count += runs[i + 1] - runs[i];
+		}
+		
+		return count;
+	}
+	
+	// Number of runs of true values in taint[start .. end-1]
+	// Warning: doesn't check bounds
+	private static int countRuns(boolean[] taint, int start, int end) {
+		int count = 0;
+		
+		for (int i = start; i < end; i++) {
+			if (taint[i] && (i == start || !taint[i - 1])) {
+				count++;
+			}
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Binary search over an interval list
+	 * @return	index of the first run of <code>runs</code> that ends after <code>position</code>; runs.length if there is none
+	 */
+	
+	private static int findRun(int[] runs, int position) {
+		int low = 0;
+		int high = runs.length >> 1;
+		
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			
+			if (runs[(mid << 1) + 1] <= position) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		
+		return low << 1;
+	}
+	
+	/**
+	 * The chars 'offset' + i for each set bit (cellsize - 1 - i) of 'word', where the taint is 'length' chars long
+	 * @return	null if word is 0, a single interval if its bits are contiguous up to length, otherwise an inline bitmap
+	 */
+	
+	private static TaintSet inline(int offset, long word, int length) {
+		if (word == 0) {
+			return null;
+		}
+		
+		int lead = Long.numberOfLeadingZeros(word);
+		
+		if (Long.bitCount(word) == length - lead) {
+			return interval(offset + lead, length - lead);
+		}
+		
+		TaintSet set = new TaintSet(offset + lead, length - lead);
+		set.inlinebits = word << lead;
+		return set;
+	}
+	
+	// A word whose first 'count' bits are set
+	private static long head(int count) {
+		return count <= 0 ? 0 : count >= cellsize ? ~0L : ~(~0L >>> count);
+	}
+	
+	/**
+	 * Binary search over a position list
+	 * @return	index of the first position of <code>positions</code> at or after <code>position</code>; positions.length if there is none
+	 */
+	
+	private static int findPosition(int[] positions, int position) {
+		int low = 0;
+		int high = positions.length;
+		
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			
+			if (positions[mid] < position) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		
+		return low;
+	}
+	
+	/**
+	 * Binary search over the starts of a chunked set
+	 * @return	index of the last chunk that starts at or before <code>position</code>; -1 if there is none
+	 */
+	
+	private static int findChunk(int[] starts, int position) {
+		int low = 0;
+		int high = starts.length;
+		
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			
+			if (starts[mid] <= position) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		
+		return low - 1;
+	}
+	
+	/**
+	 * Complement lists are kept only while they're no larger than the bitmap they replace
+	 * @return	the most holes a complement list spanning <code>length</code> chars may have, given the caller's reading of maxIntervals
+	 */
+	
+	private static int maxHoles(int length, int runlimit) {
+		return Math.max(runlimit, length >> holeshift);
+	}
+	
+	// Adaptive mode: counts a set of 'count' runs spanning 'length' chars about to be built
+	private static void observe(int count, int length) {
+		int bucket = 32 - Integer.numberOfLeadingZeros(count);
+		shapes[bucket]++;
+		
+		if (count <= numCells(length)) {
+			// two ints a run against a long per cell
+			listcheaper[bucket]++;
+		}
+		
+		if (++observed >= adaptperiod) {
+			adapt();
+		}
+	}
+	
+	/**
+	 * Adaptive mode: sets maxIntervals to cover the numbers of runs (taken by powers of two) for which interval lists
+	 * were mostly no larger than bitmaps, within [adaptivefloor, adaptiveceiling]. When the sets built are outnumbered by appends
+	 * (a join-heavy workload), complement lists are only kept while half the size of a bitmap, which appends could extend in place
+	 */
+	
+	private static synchronized void adapt() {
+		if (observed < adaptperiod) {
+			return; // another thread just did
+		}
+		
+		int cap = adaptivefloor;
+		
+		for (int bucket = 1; bucket < shapes.length; bucket++) {
+			if (shapes[bucket] == 0) {
+				continue;
+			} else if (listcheaper[bucket] << 1 < shapes[bucket]) {
+				break;
+			}
+			
+			cap = (int) Math.min((1L << bucket) - 1, Integer.MAX_VALUE);
+		}
+		
+		maxIntervals = Math.max(adaptivefloor, Math.min(cap, adaptiveceiling));
+		holeshift = joins > observed ? cellbits + 1 : cellbits;
+		
+		for (int bucket = 0; bucket < shapes.length; bucket++) {
+			shapes[bucket] >>= 1;
+			listcheaper[bucket] >>= 1;
+		}
+		
+		observed = 0;
+		joins = 0;
+	}
+	
+	/**
+	 * Position lists are kept only while they're no larger than the bitmap they replace (one int per tainted char against
+	 * two ints per cellsize chars), and, when a complement list would do, smaller than that too
+	 * @return	whether <code>tainted</code> chars in <code>count</code> runs spanning <code>length</code> chars are listed by position
+	 */
+	
+	private static boolean sparse(int tainted, int count, int length, int runlimit) {
+		return length > cellsize && tainted <= length >> (cellbits - 1) && (count - 1 > maxHoles(length, runlimit) || tainted < (count - 1) << 1);
 	}
 	
 	/**
-	 * @return	Number of integers needed to store <code>len</code> bits
+	 * @return	Number of 64-bit words needed to store <code>len</code> bits
 	 */
 	
 	private static int numCells(int len) {
 		return (len + cellmax) >>> cellbits;
 	}
 	
+	/**
+	 * Packs 32-bit cells into 64-bit words, keeping the most-significant-bit-first ordering
+	 * (cells[2i] becomes the high half of word i)
+	 */
+	
+	private static long[] toWords(int[] cells) {
+		long[] words = new long[(cells.length + 1) >>> 1];
+		
+		for (int i = 0; i < cells.length; i++) {
+			words[i >>> 1] |= (cells[i] & 0xFFFFFFFFL) << ((~i & 1) << 5);
+		}
+		
+		return words;
+	}
+	
 	/**
 	 * Determines whether bits start .. end-1 are empty (all off)
 	 * @param taintbits
@@ -814,29 +5077,115 @@ public final class TaintSet {
 	 * @return true iff bits start .. end-1 in taintbits are 0
 	 */
 	
-	private static boolean emptySet(int[] taintbits, int start, int end) {
-		int end_bits = end & cellmax;
+	private static boolean emptySet(long[] taintbits, int start, int end) {
+		if (start >= end) {
+			return true;
+		}
+		
+		// same masks as setTainted(): the first and last words are only partially covered
 		int start_bits = start & cellmax;
-		end >>= cellbits;
-		start = (start + cellmax) >> cellbits;
+		int end_bits = end & cellmax;
+		start >>= cellbits;
+		end = (end - 1) >> cellbits;
 		
-		// check whole portions first since they're easy
-		for (int i = start; i < end; i++) {
-			if (taintbits[i] != 0) {
+		if (start == end) {
+			return (taintbits[start] & ~0L >>> start_bits & ~0L << (cellsize - end_bits)) == 0;
+		}
+		
+		if ((taintbits[start] & ~0L >>> start_bits) != 0 || (taintbits[end] & ~0L << (cellsize - end_bits)) != 0) {
+			return false;
+		}
+		
+		// whole words in between
+		return zeroWords(taintbits, start + 1, end);
+	}
+	
+	/*
+	 * Kernels: the bulk middles of the loops over bitmaps, a plain scalar loop each, with no branch per word and no cell written twice.
+	 * Filling the middle of a range is Arrays.fill(). Whether the JIT vectorizes them is up to it: nothing here checks or depends on it
+	 */
+	
+	// dest[at ...] |= src[from ... to - 1]
+	private static void orWords(long[] dest, int at, long[] src, int from, int to) {
+		for (int i = from; i < to; i++) {
+			dest[at + i - from] |= src[i];
+		}
+	}
+	
+	// dest[at ...] |= the cells of src[from - 1 ... to - 1] shifted right by 'shift' bits (0 < shift < cellsize): each the end of one cell and the start of the next
+	private static void orShiftedWords(long[] dest, int at, long[] src, int from, int to, int shift) {
+		for (int i = from; i < to; i++) {
+			dest[at + i - from] |= src[i - 1] << (cellsize - shift) | src[i] >>> shift;
+		}
+	}
+	
+	// Whether bits[from ... to - 1] are all 0: or-ed four cells at a time, with a branch per four
+	private static boolean zeroWords(long[] bits, int from, int to) {
+		int i = from;
+		
+		for (; i + 4 <= to; i += 4) {
+			if ((bits[i] | bits[i + 1] | bits[i + 2] | bits[i + 3]) != 0) {
 				return false;
 			}
 		}
 		
-		// start_bits != 0 so first cell (not examined above) must be checked
-		if (start_bits > 0 && taintbits[start - 1] != 0 && (taintbits[start - 1] << start_bits) != 0) {
-			return false;
+		long word = 0;
+		
+		for (; i < to; i++) {
+			word |= bits[i];
 		}
 		
-		// TODO: double check
-		if (end_bits > 0 && taintbits[end] != 0 && (taintbits[end] >>> (cellsize - start_bits)) != 0) {
-			return false;
+		return word == 0;
+	}
+	
+	// Index of the first set bit of taintbits in [start, end); end if there is none
+	private static int firstBit(long[] taintbits, int start, int end) {
+		for (int i = start >> cellbits; i <= (end - 1) >> cellbits; i++) {
+			long word = i == start >> cellbits ? taintbits[i] & ~0L >>> (start & cellmax) : taintbits[i];
+			
+			if (word != 0) {
+				return Math.min((i << cellbits) + Long.numberOfLeadingZeros(word), end);
+			}
 		}
 		
-		return true;
+		return end;
+	}
+	
+	// Index of the last set bit of taintbits in [start, end); start - 1 if there is none
+	private static int lastBit(long[] taintbits, int start, int end) {
+		for (int i = (end - 1) >> cellbits; i >= start >> cellbits; i--) {
+			long word = i == (end - 1) >> cellbits ? taintbits[i] & ~0L << (cellsize - (end & cellmax)) : taintbits[i];
+			
+			if (word != 0) {
+				return Math.max((i << cellbits) + cellmax - Long.numberOfTrailingZeros(word), start - 1);
+			}
+		}
+		
+		return start - 1;
+	}
+	
+	// Number of set bits of taintbits in [start, end)
+	private static int countBits(long[] taintbits, int start, int end) {
+		if (start >= end) {
+			return 0;
+		}
+		
+		// same masks as setTainted(): the first and last words are only partially covered
+		int start_bits = start & cellmax;
+		int end_bits = end & cellmax;
+		start >>= cellbits;
+		end = (end - 1) >> cellbits;
+		
+		if (start == end) {
+			return Long.bitCount(taintbits[start] & ~0L >>> start_bits & ~0L << (cellsize - end_bits));
+		}
+		
+		int count = Long.bitCount(taintbits[start] & ~0L >>> start_bits) + Long.bitCount(taintbits[end] & ~0L << (cellsize - end_bits));
+		
+		for (int i = start + 1; i < end; i++) {
+			count += Long.bitCount(taintbits[i]);
+		}
+		
+		return count;
 	}
-}
\ No newline at end of file
+}
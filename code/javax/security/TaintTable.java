@@ -0,0 +1,245 @@
+package javax.security;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * A side table of taint: the TaintSet of an object, looked up by identity, for strings that don't keep it in a field of their own.
+ * Objects are held weakly, so an entry goes once its object is collected; the TaintSet never refers back to it
+ *
+ * A bit per identity hash bucket (the filter) records whether any object hashing there has taint in the table.
+ * As most strings never have, looking one up is usually a read of the filter. Lookups never lock: chains are never modified in place,
+ * but copied up to the entry that changes, and published by writing 'table', so a reader sees a chain whole, old or new.
+ * Only put() locks
+ *
+ * This is a behavioral prototype, not a memory saving: String still declares its taintvalues field, which stays null when the table
+ * is enabled but takes its slot in every string all the same. And every taint access pays for the table on top of the field it doesn't use:
+ * a branch on 'enabled', an identity hash (which the VM may have to store in the string's header) and a filter probe. A build that drops
+ * the field has only String's taint() and setTaint() to change, and only that build can measure what the table saves
+ */
+
+public final class TaintTable {
+	// Whether Strings keep their taint here instead of in their field, which they still have: the system property javax.security.TaintTable, read once
+	public final static boolean enabled = enabled();
+	
+	// The filter: bit (h & filtermask) is set once an object whose mixed identity hash is h has been given taint.
+	// Bits of objects since removed or collected go when it's rebuilt, once most of its set bits are stale (see put())
+	private static volatile long[] filter = new long[1 << 10];
+	private final static int filtermask = (filter.length << 6) - 1;
+	private static int filterbits; // bits set in the filter
+	
+	// A weak hash table chained by hash; entries of collected objects are dropped from 'collected' on each put()
+	private static volatile Entry[] table = new Entry[64];
+	private static int count;
+	private final static ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+	
+	private static final class Entry extends WeakReference<Object> {
+		final int hash;
+		final TaintSet set;
+		final Entry next;
+		
+		Entry(Object key, int hash, TaintSet set, Entry next) {
+			super(key, collected);
+			this.hash = hash;
+			this.set = set;
+			this.next = next;
+		}
+	}
+	
+	private TaintTable() {
+	}
+	
+	// Reads javax.security.TaintTable; false if it's unset, or can't be read yet, as it may be before the VM is fully up
+	private static boolean enabled() {
+		try {
+			return Boolean.parseBoolean(System.getProperty("javax.security.TaintTable"));
+		} catch (Throwable e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * @param key
+	 * @return the taint given to <code>key</code> by put(), null if none
+	 */
+	
+	public static TaintSet get(Object key) {
+		int hash = hash(key);
+		
+		if (!filtered(filter, hash)) {
+			return null;
+		}
+		
+		Entry[] tab = table;
+		
+		for (Entry e = tab[hash & (tab.length - 1)]; e != null; e = e.next) {
+			if (e.hash == hash && e.get() == key) {
+				return e.set;
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Gives <code>key</code> the taint <code>set</code>; null removes it
+	 * @param key
+	 * @param set
+	 */
+	
+	public static void put(Object key, TaintSet set) {
+		int hash = hash(key);
+		
+		if (set == null && !filtered(filter, hash)) {
+			return;
+		}
+		
+		synchronized (TaintTable.class) {
+			expunge();
+			Entry[] tab = table;
+			int i = hash & (tab.length - 1);
+			
+			for (Entry e = tab[i]; e != null; e = e.next) {
+				if (e.hash == hash && e.get() == key) {
+					unlink(tab, i, e, set);
+					table = tab;
+					return;
+				}
+			}
+			
+			if (set == null) {
+				return;
+			}
+			
+			long[] bits = filter;
+			
+			if (!filtered(bits, hash)) {
+				bits[(hash & filtermask) >>> 6] |= 1L << hash;
+				filterbits++;
+			}
+			
+			tab[i] = new Entry(key, hash, set, tab[i]);
+			count++;
+			
+			if (count > tab.length - (tab.length >> 2)) {
+				resize();
+			} else {
+				if (filterbits > filtermask >> 2 && filterbits > count << 1) {
+					rebuildFilter(); // most of its bits are of objects no longer in the table
+				}
+				
+				table = tab; // publishes the new entry to get()
+			}
+		}
+	}
+	
+	/**
+	 * @return	the number of objects with taint in the table, including collected ones not dropped yet
+	 */
+	
+	public static synchronized int size() {
+		return count;
+	}
+	
+	// Whether the filter 'bits' lets an object with this hash through to the table
+	private static boolean filtered(long[] bits, int hash) {
+		return (bits[(hash & filtermask) >>> 6] & 1L << hash) != 0;
+	}
+	
+	// The identity hash of 'key', its high bits mixed into the low ones that index the filter and the table
+	private static int hash(Object key) {
+		int hash = System.identityHashCode(key);
+		return hash ^ (hash >>> 16);
+	}
+	
+	// Drops the entries of collected objects. Holds the lock
+	private static void expunge() {
+		Entry[] tab = table;
+		boolean dropped = false;
+		
+		for (Object ref; (ref = collected.poll()) != null; ) {
+			Entry dead = (Entry) ref;
+			int i = dead.hash & (tab.length - 1);
+			
+			for (Entry e = tab[i]; e != null; e = e.next) {
+				if (e == dead) {
+					unlink(tab, i, e, null);
+					dropped = true;
+					break;
+				}
+			}
+		}
+		
+		if (dropped) {
+			table = tab;
+		}
+	}
+	
+	/**
+	 * Replaces 'target' in chain i of 'tab' by an entry with the taint 'set', or removes it if that's null: the entries before it
+	 * are copied onto the rest of the chain, dropping those already collected, so a reader walking the old chain still sees it whole. Holds the lock
+	 */
+	
+	private static void unlink(Entry[] tab, int i, Entry target, TaintSet set) {
+		Entry chain = target.next;
+		Object object = target.get();
+		
+		if (set != null && object != null) {
+			chain = new Entry(object, target.hash, set, chain);
+		} else {
+			count--;
+		}
+		
+		for (Entry e = tab[i]; e != target; e = e.next) {
+			Object key = e.get();
+			
+			if (key != null) {
+				chain = new Entry(key, e.hash, e.set, chain);
+			} else {
+				count--; // the copy drops it, so its own reference, when it's polled, finds nothing to unlink
+			}
+		}
+		
+		tab[i] = chain;
+	}
+	
+	// Doubles the table, copying its entries, since chains aren't modified in place; collected ones are dropped. Holds the lock
+	private static void resize() {
+		Entry[] old = table;
+		Entry[] tab = new Entry[old.length << 1];
+		count = 0;
+		
+		for (int i = 0; i < old.length; i++) {
+			for (Entry e = old[i]; e != null; e = e.next) {
+				Object key = e.get();
+				
+				if (key != null) {
+					int j = e.hash & (tab.length - 1);
+					tab[j] = new Entry(key, e.hash, e.set, tab[j]);
+					count++;
+				}
+			}
+		}
+		
+		table = tab;
+		rebuildFilter();
+	}
+	
+	// Replaces the filter by one with just the bits of the entries in the table. Holds the lock
+	private static void rebuildFilter() {
+		long[] bits = new long[filter.length];
+		Entry[] tab = table;
+		filterbits = 0;
+		
+		for (int i = 0; i < tab.length; i++) {
+			for (Entry e = tab[i]; e != null; e = e.next) {
+				if (!filtered(bits, e.hash)) {
+					bits[(e.hash & filtermask) >>> 6] |= 1L << e.hash;
+					filterbits++;
+				}
+			}
+		}
+		
+		filter = bits;
+	}
+}